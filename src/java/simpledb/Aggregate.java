@@ -127,8 +127,17 @@ public class Aggregate extends Operator {
     	// some code goes here
     	super.open();
     	this.kid.open(); //exists because we asserted not null in constructor
-    	while (this.kid.hasNext()) { //Aggregating all the tuples
-    		this.do_agg.mergeTupleIntoGroup(this.kid.next());
+    	if (this.do_agg instanceof IntegerAggregator) {
+    		//read the child a batch at a time, straight from its int columns
+    		IntegerAggregator int_agg = (IntegerAggregator) this.do_agg;
+    		TupleBatch batch;
+    		while ((batch = TupleBatch.next(this.kid)) != null)
+    			int_agg.mergeBatch(batch);
+    	}
+    	else {
+    		while (this.kid.hasNext()) { //Aggregating all the tuples
+    			this.do_agg.mergeTupleIntoGroup(this.kid.next());
+    		}
     	}
     	
     	this.agg_iterator = this.do_agg.iterator();
@@ -176,6 +185,8 @@ public class Aggregate extends Operator {
     	super.close();
     	this.kid.close();
     	this.agg_iterator.close();
+    	//drop the groups (and any spill files) so a reopen starts afresh
+    	this.do_agg.clear();
     }
 
     @Override
@@ -81,5 +81,11 @@ public interface Aggregator extends Serializable {
      * @see simpledb.TupleIterator for a possible helper
      */
     public OpIterator iterator();
+
+    /**
+     * Discard every group merged so far, so the aggregate can be computed
+     * again from scratch.
+     */
+    public void clear();
     
 }
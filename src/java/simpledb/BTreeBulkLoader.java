@@ -0,0 +1,324 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeBulkLoader builds a new B+ tree bottom-up from tuples sorted on the
+ * key field and swaps it in for the existing contents of a BTreeFile.
+ * <p>
+ * Leaf pages are filled to the requested fill factor in key order, and each
+ * level of internal pages is built as the pages below it are completed, so
+ * every page is written exactly once, sequentially, past the current end of
+ * the file. Only the last page of each level is kept back until the end, so
+ * that it can borrow from (or be merged into) its left neighbour if it would
+ * otherwise be less than half full. The new pages are forced to disk before the root pointer
+ * is changed; the root pointer page is then updated through the buffer pool
+ * under the loading transaction, so concurrent readers see either the old
+ * or the new tree, and an abort leaves the old tree in place (the new pages
+ * are simply unreachable). The pages of the old tree are released to the
+ * file's free list.
+ *
+ * @see BTreeFile#bulkLoad(TransactionId, OpIterator, double, boolean)
+ */
+class BTreeBulkLoader {
+
+	/** An internal page being built, with the child pointers it has so far. */
+	private static class Node {
+		final BTreeInternalPage page;
+		/** left-most child and the smallest key below it */
+		BTreePageId firstChild;
+		Field firstKey;
+		/** right-most child */
+		BTreePageId lastChild;
+
+		Node(BTreeInternalPage page) {
+			this.page = page;
+		}
+	}
+
+	private final BTreeFile file;
+	private final int tableid;
+	private final int keyField;
+	private final int tuplesPerLeaf;
+	private final int entriesPerNode;
+	private final FileChannel out;
+	private int nextPageNo;
+
+	/** leaves: the finished leaf not yet written and the one being filled */
+	private BTreeLeafPage prevLeaf;
+	private BTreeLeafPage leaf;
+	private Field lastKey;
+
+	/** internal levels, bottom first: finished node not yet written, and open node */
+	private final ArrayList<Node> prevNodes = new ArrayList<Node>();
+	private final ArrayList<Node> nodes = new ArrayList<Node>();
+	/** every page this load has written, so stale cached copies can be dropped */
+	private final ArrayList<BTreePageId> written = new ArrayList<BTreePageId>();
+	private final ArrayList<Integer> unused = new ArrayList<Integer>();
+
+	BTreeBulkLoader(BTreeFile file, double fillFactor, FileChannel out) throws IOException {
+		this.file = file;
+		this.tableid = file.getId();
+		this.keyField = file.keyField();
+		this.out = out;
+		int maxTuples = newLeaf().getMaxTuples();
+		int maxEntries = newInternal().getMaxEntries();
+		this.nextPageNo = file.numPages() + 1;
+		this.tuplesPerLeaf = Math.max(1, (int) (maxTuples * fillFactor));
+		// a node needs two entries so the last one on its level can borrow one
+		this.entriesPerNode = Math.min(maxEntries, Math.max(2, (int) (maxEntries * fillFactor)));
+	}
+
+	/**
+	 * Adds the next tuple, which must not sort before the previous one.
+	 */
+	void add(Tuple t) throws DbException, IOException {
+		Field key = t.getField(keyField);
+		if(lastKey != null && key.compare(Op.LESS_THAN, lastKey)) {
+			throw new DbException("bulk load input is not sorted on field " + keyField);
+		}
+		lastKey = key;
+		if(leaf == null) {
+			leaf = newLeaf();
+		}
+		else if(leaf.getNumTuples() >= tuplesPerLeaf) {
+			finishLeaf();
+			BTreeLeafPage next = newLeaf();
+			prevLeaf.setRightSiblingId(next.getId());
+			next.setLeftSiblingId(prevLeaf.getId());
+			leaf = next;
+		}
+		leaf.insertTuple(t);
+	}
+
+	/**
+	 * Completes the tree and forces it to disk.
+	 *
+	 * @return the id of the new root, or null if no tuples were added
+	 */
+	BTreePageId finish() throws DbException, IOException {
+		if(leaf == null) {
+			return null;
+		}
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId root;
+		if(prevLeaf != null && balanceLeaves(prevLeaf, leaf)) {
+			drop(leaf.getId());
+			write(prevLeaf);
+			root = prevLeaf.getId();
+		}
+		else {
+			leaf.setParentId(nodes.isEmpty() ? rootPtrId : addChild(0, leaf.getId(), firstKey(leaf)));
+			if(prevLeaf != null) {
+				write(prevLeaf);
+			}
+			write(leaf);
+			root = leaf.getId();
+		}
+
+		for(int level = 0; level < nodes.size(); level++) {
+			Node node = nodes.get(level);
+			Node prev = prevNodes.get(level);
+			if(prev != null && balanceNodes(prev, node)) {
+				drop(node.page.getId());
+				write(prev.page);
+				root = prev.page.getId();
+			}
+			else if(node.page.getNumEntries() == 0) {
+				// a lone node with a single child can only be at the top, where
+				// the last two nodes of the level below were merged: that child
+				// is the root
+				drop(node.page.getId());
+				setParent(node.firstChild, rootPtrId);
+				root = node.firstChild;
+			}
+			else {
+				node.page.setParentId(level + 1 < nodes.size()
+						? addChild(level + 1, node.page.getId(), node.firstKey) : rootPtrId);
+				if(prev != null) {
+					write(prev.page);
+				}
+				write(node.page);
+				root = node.page.getId();
+			}
+		}
+		out.force(true);
+		for(BTreePageId pid : written) {
+			Database.getBufferPool().discardPage(pid);
+		}
+		return root;
+	}
+
+	/**
+	 * @return the numbers of the pages that were allocated but not used in the
+	 * final tree; they should be released to the file's free list
+	 */
+	List<Integer> getUnusedPages() {
+		return unused;
+	}
+
+	private BTreeLeafPage newLeaf() throws IOException {
+		BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF);
+		return new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), keyField);
+	}
+
+	private BTreeInternalPage newInternal() throws IOException {
+		BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL);
+		return new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), keyField);
+	}
+
+	private Field firstKey(BTreeLeafPage page) {
+		return page.iterator().next().getField(keyField);
+	}
+
+	/** Hands the full leaf to its parent level and writes the one before it. */
+	private void finishLeaf() throws DbException, IOException {
+		leaf.setParentId(addChild(0, leaf.getId(), firstKey(leaf)));
+		if(prevLeaf != null) {
+			write(prevLeaf);
+		}
+		prevLeaf = leaf;
+	}
+
+	/**
+	 * Appends a child to the open node of the given internal level, starting
+	 * a new node (and finishing the full one) if needed.
+	 *
+	 * @param level - 0 for the parents of the leaves
+	 * @param child - the child to add; every child added before it is smaller
+	 * @param key - the smallest key in the child's subtree
+	 * @return the id of the page that is now the child's parent
+	 */
+	private BTreePageId addChild(int level, BTreePageId child, Field key) throws DbException, IOException {
+		if(level == nodes.size()) {
+			nodes.add(null);
+			prevNodes.add(null);
+		}
+		Node node = nodes.get(level);
+		if(node != null && node.page.getNumEntries() < entriesPerNode) {
+			node.page.insertEntry(new BTreeEntry(key, node.lastChild, child));
+			node.lastChild = child;
+			return node.page.getId();
+		}
+		if(node != null) {
+			node.page.setParentId(addChild(level + 1, node.page.getId(), node.firstKey));
+			Node prev = prevNodes.get(level);
+			if(prev != null) {
+				write(prev.page);
+			}
+			prevNodes.set(level, node);
+		}
+		node = new Node(newInternal());
+		node.firstChild = child;
+		node.firstKey = key;
+		node.lastChild = child;
+		nodes.set(level, node);
+		return node.page.getId();
+	}
+
+	/**
+	 * If the last leaf, right, is less than half full, merges it into its left
+	 * neighbour if they fit in one page, or else moves tuples from the end of
+	 * left into it to even them out.
+	 *
+	 * @return true if right was merged into left and is no longer used
+	 */
+	private boolean balanceLeaves(BTreeLeafPage left, BTreeLeafPage right) throws DbException {
+		if(right.getNumTuples() >= right.getMaxTuples() / 2) {
+			return false;
+		}
+		if(left.getNumTuples() + right.getNumTuples() <= left.getMaxTuples()) {
+			ArrayList<Tuple> moving = new ArrayList<Tuple>();
+			Iterator<Tuple> it = right.iterator();
+			while(it.hasNext()) {
+				moving.add(it.next());
+			}
+			for(Tuple t : moving) {
+				right.deleteTuple(t);
+				left.insertTuple(t);
+			}
+			left.setRightSiblingId(null);
+			return true;
+		}
+		int toMove = (left.getNumTuples() - right.getNumTuples()) / 2;
+		Iterator<Tuple> it = left.reverseIterator();
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		while(moving.size() < toMove && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			left.deleteTuple(t);
+			right.insertTuple(t);
+		}
+		return false;
+	}
+
+	/**
+	 * The internal-level counterpart of balanceLeaves: if the last node of a
+	 * level, right, has less than half its entries, it is merged into left if
+	 * they fit in one page, or else children are moved from the end of left
+	 * into it. Each moved child rotates a key: left's last key becomes the
+	 * smallest key under right. The children are already on disk, so their
+	 * parent pointers are patched there.
+	 *
+	 * @return true if right was merged into left and is no longer used
+	 */
+	private boolean balanceNodes(Node left, Node right) throws DbException, IOException {
+		if(right.page.getNumEntries() >= right.page.getMaxEntries() / 2) {
+			return false;
+		}
+		if(left.page.getNumEntries() + right.page.getNumEntries() + 1 <= left.page.getMaxEntries()) {
+			left.page.insertEntry(new BTreeEntry(right.firstKey, left.lastChild, right.firstChild));
+			setParent(right.firstChild, left.page.getId());
+			Iterator<BTreeEntry> it = right.page.iterator();
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				left.page.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+				setParent(e.getRightChild(), left.page.getId());
+			}
+			left.lastChild = right.lastChild;
+			return true;
+		}
+		int toMove = (left.page.getNumEntries() - right.page.getNumEntries()) / 2;
+		for(int i = 0; i < toMove; i++) {
+			BTreeEntry last = left.page.reverseIterator().next();
+			left.page.deleteKeyAndRightChild(last);
+			right.page.insertEntry(new BTreeEntry(right.firstKey, last.getRightChild(), right.firstChild));
+			right.firstChild = last.getRightChild();
+			right.firstKey = last.getKey();
+			setParent(last.getRightChild(), right.page.getId());
+		}
+		left.lastChild = left.page.reverseIterator().next().getRightChild();
+		return false;
+	}
+
+	private void setParent(BTreePageId child, BTreePageId parent) throws DbException, IOException {
+		BTreePage page = (BTreePage) file.readPage(child);
+		page.setParentId(parent);
+		write(page);
+	}
+
+	/** Blanks a page that was allocated but not used, so the file still covers it. */
+	private void drop(BTreePageId pid) throws IOException {
+		write(pid, BTreePage.createEmptyPageData());
+		unused.add(pid.getPageNumber());
+	}
+
+	private void write(Page page) throws IOException {
+		write((BTreePageId) page.getId(), page.getPageData());
+	}
+
+	private void write(BTreePageId pid, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		long offset = BTreeRootPtrPage.getPageSize() + (long) (pid.getPageNumber() - 1) * BufferPool.getPageSize();
+		while(buf.hasRemaining()) {
+			out.write(buf, offset + buf.position());
+		}
+		written.add(pid);
+	}
+}
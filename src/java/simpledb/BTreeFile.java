@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -16,6 +19,7 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
+ * @see #setMemoryMapped
  * @author Becca Taft
  */
 public class BTreeFile implements DbFile {
@@ -24,6 +28,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private FileChannel readChannel;
+	private volatile MappedFile mapped;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -78,39 +84,19 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readPageBytes(0, pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readPageBytes(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber()-1) * BufferPool.getPageSize(),
+						pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,15 +113,61 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
+		}
+	}
+
+	/**
+	 * Fill pageBuf with the bytes of the file starting at offset, either from
+	 * the memory mapping or with a positional read on the read channel.
+	 * 
+	 * @throws IllegalArgumentException if the file ends before pageBuf is full
+	 */
+	private void readPageBytes(long offset, byte[] pageBuf) throws IOException {
+		MappedFile m = mapped;
+		if(m != null) {
+			if(!m.read(offset, pageBuf)) {
+				throw new IllegalArgumentException("Unable to read "
+						+ pageBuf.length + " bytes from BTreeFile");
 			}
+			return;
 		}
+		FileChannel c = getReadChannel();
+		ByteBuffer buf = ByteBuffer.wrap(pageBuf);
+		while(buf.hasRemaining()) {
+			int retval = c.read(buf, offset + buf.position());
+			if (retval == -1 && buf.position() == 0) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			if (retval == -1) {
+				throw new IllegalArgumentException("Unable to read "
+						+ pageBuf.length + " bytes from BTreeFile");
+			}
+		}
+	}
+
+	private synchronized FileChannel getReadChannel() throws IOException {
+		if(readChannel == null)
+			readChannel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		return readChannel;
+	}
+
+	/**
+	 * Turn memory-mapped reads on or off. When on, readPage copies pages out
+	 * of a read-only mapping of the file, which is remapped as the file grows.
+	 * Useful for read-mostly indexes larger than the buffer pool.
+	 */
+	public synchronized void setMemoryMapped(boolean mmap) throws IOException {
+		if(mmap && mapped == null) {
+			mapped = new MappedFile(f);
+		}
+		else if(!mmap && mapped != null) {
+			mapped.close();
+			mapped = null;
+		}
+	}
+
+	public boolean isMemoryMapped() {
+		return mapped != null;
 	}
 
 	/**
@@ -176,13 +208,36 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
+	 * Finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
+	 * nodes along the path to the leaf node with permission perm, and locks the 
 	 * leaf node with permission perm.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
+	 * The descent crabs: the child is locked before any lock above it is let
+	 * go, so the path followed is always consistent. Locks taken on internal
+	 * pages only for the descent are short-duration latches:
+	 * <ul>
+	 * <li>READ_ONLY: the lock on a page is released as soon as its child is
+	 * locked, so lookups and scans share internal pages only briefly.</li>
+	 * <li>READ_WRITE: internal pages are locked exclusively, and the locks on
+	 * the pages above a page are released once that page has a free slot, as
+	 * it cannot split then. A writer that reaches a full leaf therefore
+	 * already holds exclusively every page its split may have to change,
+	 * up to the lowest page with room, and the split cannot deadlock with
+	 * another writer below the same parent.</li>
+	 * </ul>
+	 * A writer never waits for a page while holding latches above it: a
+	 * reader holding that page could be waiting for one of them. It lets
+	 * them go instead, waits for the page alone and starts over from pid,
+	 * keeping the page it waited for: writers that gave it up again before
+	 * getting back to it would only take turns waiting for each other. The
+	 * new descent treats such a page as a latch of its own, and lets it go
+	 * at the end if the path no longer goes through it.
+	 * The leaf lock is kept until the transaction ends; pages the transaction
+	 * already held or had dirtied are left alone.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the current page being searched
@@ -191,11 +246,79 @@ public class BTreeFile implements DbFile {
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		BufferPool bp = Database.getBufferPool();
+		// pages above the current one locked only for this descent
+		ArrayList<BTreePageId> latched = new ArrayList<BTreePageId>();
+		// internal pages waited for alone, still locked across the restart
+		HashSet<BTreePageId> waited = new HashSet<BTreePageId>();
+		BTreePageId parentId = null;
+		BTreePageId pageId = pid;
+		while(true) {
+			boolean isLeaf = pageId.pgcateg() == BTreePageId.LEAF;
+			boolean waitedFor = waited.remove(pageId);
+			boolean heldBefore = !waitedFor && (dirtypages.containsKey(pageId) || bp.holdsLock(tid, pageId));
+			if(!latched.isEmpty() && !heldBefore && !waitedFor && !bp.tryLock(tid, pageId, perm)) {
+				releaseLatches(tid, dirtypages, latched);
+				getPage(tid, dirtypages, pageId, perm);
+				if(!isLeaf) {
+					waited.add(pageId);
+				}
+				pageId = pid;
+				continue;
+			}
+			Page page = getPage(tid, dirtypages, pageId, perm);
+			if(perm == Permissions.READ_ONLY || ((BTreePage) page).getNumEmptySlots() > 0) {
+				releaseLatches(tid, dirtypages, latched);
+			}
+			if(isLeaf) {
+				// pages waited for that the new path did not go through
+				releaseLatches(tid, dirtypages, new ArrayList<BTreePageId>(waited));
+				return (BTreeLeafPage) page;
+			}
+			if(pageId.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("findLeafPage reached a " + BTreePageId.categToString(pageId.pgcateg()) + " page");
+			}
+			if(!heldBefore) {
+				latched.add(pageId);
+			}
+			parentId = pageId;
+			pageId = childFor((BTreeInternalPage) page, f);
+			if(pageId == null) {
+				throw new DbException("internal page " + parentId.getPageNumber() + " has no entries");
+			}
+		}
+	}
+
+	/**
+	 * Releases the internal pages findLeafPage locked only for its descent.
+	 */
+	private void releaseLatches(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			ArrayList<BTreePageId> latched) {
+		for(BTreePageId id : latched) {
+			dirtypages.remove(id);
+			Database.getBufferPool().releasePage(tid, id);
+		}
+		latched.clear();
+	}
+
+	/**
+	 * Returns the child of an internal page to descend into when looking for
+	 * the left-most leaf that may contain f (the left-most child if f is null).
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e == null ? null : e.getRightChild();
 	}
 	
 	/**
@@ -247,8 +370,39 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage right_page = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		dirtypages.put(page.getId(), page);
+
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		int to_move = page.getNumTuples() / 2;
+		while(moving.size() < to_move && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			right_page.insertTuple(t);
+		}
+		Field mid_key = right_page.iterator().next().getField(keyField);
+
+		BTreePageId old_right = page.getRightSiblingId();
+		if(old_right != null) {
+			BTreeLeafPage old_right_page = (BTreeLeafPage) getPage(tid, dirtypages, old_right, Permissions.READ_WRITE);
+			old_right_page.setLeftSiblingId(right_page.getId());
+		}
+		right_page.setRightSiblingId(old_right);
+		right_page.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(right_page.getId());
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid_key);
+		parent.insertEntry(new BTreeEntry(mid_key, page.getId(), right_page.getId()));
+		page.setParentId(parent.getId());
+		right_page.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, mid_key)) {
+			return right_page;
+		}
+		return page;
 	}
 	
 	/**
@@ -285,7 +439,37 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage right_page = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		dirtypages.put(page.getId(), page);
+
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		int to_move = page.getNumEntries() / 2;
+		while(moving.size() < to_move && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			right_page.insertEntry(e);
+		}
+
+		// the last entry left on the page is pushed up; its right child is
+		// already the left-most child of the new page
+		BTreeEntry mid = page.reverseIterator().next();
+		page.deleteKeyAndRightChild(mid);
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(right_page.getId());
+		updateParentPointers(tid, dirtypages, right_page);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		right_page.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, mid.getKey())) {
+			return right_page;
+		}
+		return page;
 	}
 	
 	/**
@@ -462,6 +646,111 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Replace the contents of this BTreeFile with the tuples of child. Instead of
+	 * inserting the tuples one at a time, a new tree is built bottom-up with leaf
+	 * and internal pages filled to fillFactor, written sequentially past the end
+	 * of the file, and attached by pointing the root pointer page at its root.
+	 * The pages of the old tree are released for reuse. The exclusive lock on the
+	 * root pointer page keeps other transactions out of the tree until tid
+	 * completes; if tid aborts the old tree is left untouched.
+	 * 
+	 * @param tid - the transaction id
+	 * @param child - the tuples to load
+	 * @param fillFactor - the fraction of each page to fill, in [0.5, 1]
+	 * @param sorted - whether child returns the tuples in ascending key order. If not,
+	 * they are sorted first with an OrderBy
+	 * @return the number of tuples loaded
+	 * @see BTreeBulkLoader
+	 * 
+	 * @throws DbException if the fill factor or the tuple descriptor of child is invalid,
+	 * or if sorted is true but child is not sorted
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public int bulkLoad(TransactionId tid, OpIterator child, double fillFactor, boolean sorted)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new DbException("fill factor must be in [0.5, 1]: " + fillFactor);
+		}
+		if(!child.getTupleDesc().equals(td)) {
+			throw new DbException("bulk load input does not match the tuple descriptor of the table");
+		}
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+
+		OpIterator input = sorted ? child : new OrderBy(keyField, true, child);
+		int count = 0;
+		BTreePageId newRoot;
+		List<Integer> unused;
+		FileChannel out = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+		try {
+			BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor, out);
+			input.open();
+			try {
+				while(input.hasNext()) {
+					loader.add(input.next());
+					count++;
+				}
+			} finally {
+				input.close();
+			}
+			newRoot = loader.finish();
+			unused = loader.getUnusedPages();
+		} finally {
+			out.close();
+		}
+
+		BTreePageId oldRoot = rootPtr.getRootId();
+		if(oldRoot != null) {
+			freeTree(tid, dirtypages, oldRoot);
+		}
+		for(int pgno : unused) {
+			setEmptyPage(tid, dirtypages, pgno);
+		}
+		if(newRoot == null && oldRoot != null) {
+			// the file is not empty any more, so the insertTuple path that puts
+			// the first root at the end of the file cannot be used: give the
+			// empty tree a real (empty) root leaf instead
+			newRoot = ((BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF)).getId();
+		}
+		if(newRoot != null) {
+			rootPtr.setRootId(newRoot);
+		}
+		for(Page p : dirtypages.values()) {
+			Database.getBufferPool().cache_dirty_page(tid, p);
+		}
+		return count;
+	}
+
+	/**
+	 * Release every page of the (sub)tree rooted at root for reuse. Only the internal
+	 * pages are read; the leaves are known from their parents.
+	 */
+	private void freeTree(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId root)
+			throws DbException, IOException, TransactionAbortedException {
+		ArrayList<BTreePageId> pending = new ArrayList<BTreePageId>();
+		pending.add(root);
+		while(!pending.isEmpty()) {
+			BTreePageId pid = pending.remove(pending.size() - 1);
+			if(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = null;
+				while(it.hasNext()) {
+					e = it.next();
+					pending.add(e.getLeftChild());
+				}
+				if(e != null) {
+					pending.add(e.getRightChild());
+				}
+			}
+			setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		}
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -581,6 +870,20 @@ public class BTreeFile implements DbFile {
         // Move some of the tuples from the sibling to the page so
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		int to_move = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		while(moving.size() < to_move && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage right_page = isRightSibling ? sibling : page;
+		entry.setKey(right_page.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -661,6 +964,17 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		int to_move = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		for(int i = 0; i < to_move; i++) {
+			// rotate the last key of the left sibling through the parent entry
+			BTreeEntry last = leftSibling.reverseIterator().next();
+			BTreeEntry first = page.iterator().next();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			parentEntry.setKey(last.getKey());
+			parent.updateEntry(parentEntry);
+			leftSibling.deleteKeyAndRightChild(last);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -689,6 +1003,17 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		int to_move = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		for(int i = 0; i < to_move; i++) {
+			// rotate the first key of the right sibling through the parent entry
+			BTreeEntry first = rightSibling.iterator().next();
+			BTreeEntry last = page.reverseIterator().next();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			parentEntry.setKey(first.getKey());
+			parent.updateEntry(parentEntry);
+			rightSibling.deleteKeyAndLeftChild(first);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -719,6 +1044,25 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId right_sibling = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(right_sibling);
+		if(right_sibling != null) {
+			BTreeLeafPage right_sibling_page = (BTreeLeafPage) getPage(tid, dirtypages, right_sibling, Permissions.READ_WRITE);
+			right_sibling_page.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -752,6 +1096,23 @@ public class BTreeFile implements DbFile {
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		BTreeEntry last = leftPage.reverseIterator().next();
+		BTreeEntry first = rightPage.iterator().next();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
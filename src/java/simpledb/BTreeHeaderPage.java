@@ -23,6 +23,11 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
+	/**
+	 * the data of the before-image: the bytes the page was read from, or the
+	 * page as it was before its first change since the last
+	 * {@link #setBeforeImage()}; null while there has been no such change
+	 */
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
 
@@ -61,13 +66,15 @@ public class BTreeHeaderPage implements Page {
 
 		dis.close();
 
-		setBeforeImage();
+		// the before-image until the first change: data is not changed
+		oldData = data;
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
+		beforeWrite();
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -95,7 +102,7 @@ public class BTreeHeaderPage implements Page {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
@@ -106,10 +113,26 @@ public class BTreeHeaderPage implements Page {
 		return null;
 	}
 
+	/**
+	 * Makes the page as it is now its before-image. The image is captured
+	 * only when the page is next changed.
+	 */
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
+		}
+	}
+
+	/**
+	 * Captures the before-image, if the page has not been changed since the
+	 * last setBeforeImage(). Called before each change to the page.
+	 */
+	private void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
 		}
 	}
 
@@ -211,6 +234,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -231,6 +255,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -277,6 +302,7 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
+		beforeWrite();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
@@ -108,7 +108,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the before-image until the first change: data is not changed
+		oldData = data;
 	}
 
 	/** 
@@ -140,11 +141,7 @@ public class BTreeInternalPage extends BTreePage {
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
+			byte[] oldDataRef = getBeforeImageData();
 			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -154,13 +151,6 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read keys from the source file.
 	 */
@@ -352,6 +342,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		beforeWrite();
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -409,6 +400,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		beforeWrite();
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -441,6 +433,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		beforeWrite();
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -761,7 +754,12 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
+				// the left child is in the closest used slot before the entry,
+				// which need not be entry - 1 once entries have been deleted
+				while(curEntry > 0 && !p.isSlotUsed(curEntry)) {
+					--curEntry;
+				}
+				BTreePageId childId = p.getChildId(curEntry);
 				if(key != null && childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
@@ -103,7 +103,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
+		// the before-image until the first change: data is not changed
+		oldData = data;
 	}
 
 	/** 
@@ -132,11 +133,7 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
+			byte[] oldDataRef = getBeforeImageData();
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -146,13 +143,6 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -294,6 +284,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		beforeWrite();
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -309,6 +300,7 @@ public class BTreeLeafPage extends BTreePage {
 	public void insertTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
+		beforeWrite();
 
 		// find the first empty slot 
 		int emptySlot = -1;
@@ -400,6 +392,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +413,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -21,6 +21,11 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	/**
+	 * the data of the before-image: the bytes the page was read from, or the
+	 * page as it was before its first change since the last
+	 * {@link #setBeforeImage()}; null while there has been no such change
+	 */
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
@@ -61,6 +66,39 @@ public abstract class BTreePage implements Page {
 		return pid;
 	}
 
+	/**
+	 * Makes the page as it is now its before-image. The image is captured
+	 * only when the page is next changed (see {@link #beforeWrite()}).
+	 */
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = null;
+		}
+	}
+
+	/**
+	 * Captures the before-image, if the page has not been changed since the
+	 * last {@link #setBeforeImage()}. Called before each change to the page.
+	 */
+	protected void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
+		}
+	}
+
+	/**
+	 * @return the data of the before-image of this page
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData != null ? oldData : getPageData();
+		}
+	}
+
 	/**
 	 * Static method to generate a byte array corresponding to an empty
 	 * BTreePage.
@@ -101,6 +139,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		beforeWrite();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -22,6 +22,11 @@ public class BTreeRootPtrPage implements Page {
 	private int rootCategory;
 	private int header;
 
+	/**
+	 * the data of the before-image: the bytes the page was read from, or the
+	 * page as it was before its first change since the last
+	 * {@link #setBeforeImage()}; null while there has been no such change
+	 */
 	private byte[] oldData;
 
 	/**
@@ -44,11 +49,25 @@ public class BTreeRootPtrPage implements Page {
 		// read in the header pointer
 		header = dis.readInt();
 		
-		setBeforeImage();
+		// the before-image until the first change: data is not changed
+		oldData = data;
 	}
 
+	/**
+	 * Makes the page as it is now its before-image. The image is captured
+	 * only when the page is next changed.
+	 */
 	public void setBeforeImage() {
-		oldData = getPageData().clone();
+		oldData = null;
+	}
+
+	/**
+	 * Captures the before-image, if the page has not been changed since the
+	 * last setBeforeImage(). Called before each change to the page.
+	 */
+	private void beforeWrite() {
+		if (oldData == null)
+			oldData = getPageData();
 	}
 
 	/**
@@ -142,7 +161,7 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			return new BTreeRootPtrPage(pid, oldData != null ? oldData : getPageData());
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,6 +187,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			root = 0;
 		}
@@ -200,6 +220,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			header = 0;
 		}
@@ -15,6 +15,7 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -60,6 +61,36 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate this scan matches, or null if it returns
+	 *       every tuple
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * Changes the index predicate this scan matches. The scan is closed, and
+	 * has to be opened (or rewound) before it returns the new tuples.
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan will return all tuples
+	 *            in sorted order
+	 */
+	public void setIndexPredicate(IndexPredicate ipred) {
+		if(isOpen) {
+			it.close();
+			isOpen = false;
+		}
+		this.ipred = ipred;
+		DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+		if(ipred == null) {
+			this.it = file.iterator(tid);
+		}
+		else {
+			this.it = ((BTreeFile) file).indexIterator(tid, ipred);
+		}
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -74,6 +105,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
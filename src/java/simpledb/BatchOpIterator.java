@@ -0,0 +1,24 @@
+package simpledb;
+
+/**
+ * BatchOpIterator is implemented by iterators that can hand out their tuples
+ * a batch at a time, as well as one at a time through {@link OpIterator}.
+ * Operators reading a child a batch at a time should go through
+ * {@link TupleBatch#next(OpIterator)}, which falls back to the row interface
+ * for children that do not implement this one.
+ * <p>
+ * A caller should read an iterator either by rows or by batches between an
+ * open (or rewind) and the end of the iteration, not both.
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next tuples of the iteration.
+     *
+     * @return a batch with at least one selected row, or null if there are no
+     *         more tuples. The batch belongs to the caller.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+}
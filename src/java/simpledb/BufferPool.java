@@ -2,8 +2,15 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +20,18 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a ConcurrentHashMap of frames, so a request for a page
+ * that is already cached only touches the frame itself and never the pool
+ * monitor. The monitor is only taken to create a frame (on a miss), to evict,
+ * and to flush. Each frame carries a pin count; a pinned frame is never
+ * evicted, which keeps a page from disappearing while getPage reads it in.
+ * <p>
+ * A page fetched READ_WRITE is only marked dirty once the DbFile hands it
+ * back from insertTuple/deleteTuple, but it may be changed in place before
+ * that (e.g. during a B+ tree split). Aborting a transaction therefore rolls
+ * back every cached page it holds an exclusive lock on, not just the pages
+ * that are already dirty.
  * 
  * @Threadsafe, all fields are final
  */
@@ -27,20 +46,48 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
+    /** Number of lock stripes in the page table. */
+    private static final int PAGE_TABLE_STRIPES = 16;
+
     private int max_num_pages;
-    private HashMap<PageId, Page> buffer_pages;
+    private ConcurrentHashMap<PageId, Frame> buffer_pages;
     private PageLocker lock_manager;
-    private static int timeout = 200;
+    private ReplacementPolicy replacer;
+    /** Default upper bound on a lock wait in ms, see setLockTimeout. */
+    public static final long DEFAULT_LOCK_TIMEOUT = 30000;
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Upper bound on a lock wait in ms, 0 for none. Deadlocks are found by
+     * PageLocker, so the bound is only a backstop against a lock holder that
+     * never completes or a wait the waits-for graph does not see.
+     */
+    private static long lock_timeout = DEFAULT_LOCK_TIMEOUT;
+    /** Number of background threads doing read-ahead, shared by all pools. */
+    private static final int PREFETCH_THREADS = 2;
+    private static ExecutorService prefetcher = null;
+    private AtomicLong pages_prefetched = new AtomicLong(0);
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
+    	this(numPages, new ClockPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy used to choose which page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
     	max_num_pages = numPages;
-    	buffer_pages = new HashMap<PageId, Page>();
+    	buffer_pages = new ConcurrentHashMap<PageId, Frame>(numPages, 0.75f, PAGE_TABLE_STRIPES);
     	lock_manager = new PageLocker();
+    	replacer = policy;
     }
     
     public static int getPageSize() {
@@ -57,6 +104,20 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Makes getPage abort a transaction that has waited for a lock for more
+     * than timeoutMs, or never with 0. The default is DEFAULT_LOCK_TIMEOUT;
+     * deadlocks are resolved long before, by aborting a victim as soon as the
+     * cycle forms.
+     */
+    public static void setLockTimeout(long timeoutMs) {
+    	BufferPool.lock_timeout = Math.max(timeoutMs, 0);
+    }
+
+    public static long getLockTimeout() {
+    	return lock_timeout;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -75,45 +136,168 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	long start_time = System.currentTimeMillis();
-    	boolean obtained_lock = this.lock_manager.acquire_lock(tid, pid, perm);
-    	while (!obtained_lock) {
-    		//blocking
-    		long current_time = System.currentTimeMillis();
-    		if (current_time - start_time > this.timeout) {
-    			//time out, throw error bc not getting the lock due to deadlock
-    			try {
-					transactionComplete(tid, false);
-				} catch (IOException e) {
-					System.out.print("IO exception when aborting txn");
-				}
-    			throw new TransactionAbortedException();
-    		}
+    	boolean obtained_lock = this.lock_manager.acquire_lock(tid, pid, perm, lock_timeout);
+    	if (!obtained_lock) {
+    		//chosen as a deadlock victim (or timed out), abort
     		try {
-    			int sleeper = (int) Math.random()*10;
-				Thread.sleep(sleeper+15);
-			} catch (InterruptedException e) {
-				System.out.print("issues with thread sleeping");
+				transactionComplete(tid, false);
+			} catch (IOException e) {
+				System.out.print("IO exception when aborting txn");
 			}
-    		obtained_lock = this.lock_manager.acquire_lock(tid, pid, perm);
-	
-    	}
-    	if (!obtained_lock) //didnt get lock so cant have the page
     		throw new TransactionAbortedException();
+    	}
     	
-    	if (!buffer_pages.containsKey(pid)) {
-    		if (buffer_pages.size()>=max_num_pages) {
-    			this.evictPage();
-    			//throw new DbException("Maximum number of pages in buffer already.");
+    	Frame frame = pin_frame(pid);
+    	try {
+    		// a page is only marked dirty once the DbFile hands it back from
+    		// insertTuple/deleteTuple, so READ_WRITE pages a B+ tree split merely
+    		// looks at stay evictable
+    		return frame.load(pid);
+    	} finally {
+    		frame.unpin();
+    	}
+    }
+
+    /**
+     * Returns the pinned frame for pid, creating it (and evicting another
+     * page if the pool is full) on a miss. The caller must unpin it.
+     */
+    private Frame pin_frame(PageId pid) throws DbException {
+    	Frame frame = buffer_pages.get(pid);
+    	if (frame != null && frame.pin()) {
+    		replacer.pageAccessed(pid);
+    		return frame;
+    	}
+    	synchronized (this) {
+    		frame = buffer_pages.get(pid);
+    		if (frame == null || !frame.pin()) {
+    			if (buffer_pages.size() >= max_num_pages) {
+    				this.evictPage();
+    				//throw new DbException("Maximum number of pages in buffer already.");
+    			}
+    			frame = new Frame(null);
+    			frame.pin();
+    			buffer_pages.put(pid, frame);
+    			replacer.pageLoaded(pid);
     		}
-    		DbFile data = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    		Page new_page = data.readPage(pid);
-    		buffer_pages.put(pid, new_page);
+    		else {
+    			replacer.pageAccessed(pid);
+    		}
+    		return frame;
     	}
-    	if (perm.permLevel == 1)
-    		buffer_pages.get(pid).markDirty(true, tid);
-    	return buffer_pages.get(pid);
-    	
+    }
+
+    /**
+     * Puts a page modified by insertTuple/deleteTuple into the pool and marks
+     * it dirty, replacing any cached version of it.
+     */
+    void cache_dirty_page(TransactionId tid, Page p) throws DbException {
+    	PageId pid = p.getId();
+    	Frame frame = pin_frame(pid);
+    	try {
+    		frame.install(p, tid);
+    	} finally {
+    		frame.unpin();
+    	}
+    }
+
+    /**
+     * Asynchronously reads the given pages into the pool so that a scan finds
+     * them cached when it gets there. Used by HeapFile's iterator for
+     * sequential read-ahead.
+     * <p>
+     * No locks are taken: tid still locks each page through getPage when it
+     * actually reads it. A page is skipped if it is already cached, or if
+     * another transaction holds or waits for an exclusive lock on it (it is
+     * about to be changed, and reading it now would only race the writer).
+     * Room is made the same way as for getPage, so pinned and dirty pages are
+     * never evicted; the request is dropped as soon as nothing is evictable,
+     * the table has been dropped or a page is past the end of the file. Any
+     * other exception is a bug and is left to the prefetch thread's uncaught
+     * exception handler, which reports it.
+     * At most a quarter of the pool is prefetched per call, so read-ahead
+     * cannot flush the whole cache, and pools of fewer than four pages never
+     * prefetch.
+     *
+     * @param tid the transaction that is going to read the pages
+     * @param pids the pages to read, in the order they will be needed
+     */
+    public void prefetchPages(final TransactionId tid, List<PageId> pids) {
+    	int n = Math.min(pids.size(), max_num_pages / 4);
+    	if (n <= 0)
+    		return;
+    	final ArrayList<PageId> todo = new ArrayList<PageId>(pids.subList(0, n));
+    	get_prefetcher().execute(new Runnable() {
+    		public void run() {
+    			for (PageId pid : todo) {
+    				if (buffer_pages.containsKey(pid) || lock_manager.write_locked_by_other(tid, pid))
+    					continue;
+    				try {
+    					Frame frame = pin_frame(pid);
+    					try {
+    						frame.load(pid);
+    					} finally {
+    						frame.unpin();
+    					}
+    					pages_prefetched.incrementAndGet();
+    				} catch (DbException e) {
+    					//nothing left to evict, the scan will read synchronously
+    					return;
+    				} catch (NoSuchElementException e) {
+    					//the table was dropped
+    					return;
+    				} catch (UnsupportedOperationException e) {
+    					//the page does not exist (any more); HeapFile.readPage
+    					//reports a page past the end of the file this way
+    					return;
+    				}
+    			}
+    		}
+    	});
+    }
+
+    /** @return the number of pages this pool has read ahead of a scan */
+    public long getPagesPrefetched() {
+    	return pages_prefetched.get();
+    }
+
+    private static synchronized ExecutorService get_prefetcher() {
+    	if (prefetcher == null) {
+    		prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "simpledb-prefetch");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return prefetcher;
+    }
+
+    /**
+     * Sets how PageLocker picks the transaction to abort when it finds a
+     * cycle in the waits-for graph.
+     */
+    public void setDeadlockVictimPolicy(PageLocker.VictimPolicy policy) {
+    	this.lock_manager.set_victim_policy(policy);
+    }
+
+    /** @return the number of deadlocks detected by this pool's lock manager */
+    public long getDeadlocksDetected() {
+    	return this.lock_manager.get_deadlocks_detected();
+    }
+
+    /**
+     * Returns the live lock counters (acquisitions, waits, wait time
+     * histogram, upgrades, timeouts, aborts) for one table.
+     */
+    public LockStats getLockStats(int tableId) {
+    	return this.lock_manager.get_lock_stats(tableId);
+    }
+
+    /** @return the lock counters of every table locked so far, by table id */
+    public Map<Integer, LockStats> getLockStats() {
+    	return this.lock_manager.get_all_lock_stats();
     }
 
     /**
@@ -150,6 +334,15 @@ public class BufferPool {
     	return out;
     }
 
+    /**
+     * Takes the lock on a page for tid only if it can be granted without
+     * waiting; the page itself is not fetched.
+     * @return true if tid now holds the requested lock on pid
+     */
+    boolean tryLock(TransactionId tid, PageId pid, Permissions perm) {
+    	return this.lock_manager.acquire_lock(tid, pid, perm);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -161,18 +354,41 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	for (PageId pid : this.buffer_pages.keySet()) {
-    		HeapPage page = (HeapPage) this.buffer_pages.get(pid);
-    		if (page.isDirty() != null && page.isDirty() == tid) {
+    	for (Map.Entry<PageId, Frame> e : this.buffer_pages.entrySet()) {
+    		PageId pid = e.getKey();
+    		Page page = e.getValue().page;
+    		if (page != null && page.isDirty() != null && page.isDirty() == tid) {
     			if (commit)
     				flushPage(pid);
     			else
-    				this.buffer_pages.put(pid, page.getBeforeImage());
+    				roll_back(e.getValue(), page);
     		}	
     	}
+    	if (!commit) {
+    		//pages changed in place by an operation that aborted before
+    		//handing them back are write-locked by tid but not yet dirty
+    		for (PageId pid : this.lock_manager.exclusive_pages(tid)) {
+    			Frame frame = this.buffer_pages.get(pid);
+    			Page page = frame == null ? null : frame.page;
+    			if (page != null && page.isDirty() == null)
+    				roll_back(frame, page);
+    		}
+    	}
     	this.lock_manager.release_all_locks(tid);
     }
 
+    /**
+     * Puts the before-image of page back into its frame, and lets a heap
+     * file know the page has its old free space again.
+     */
+    private void roll_back(Frame frame, Page page) {
+    	Page before = page.getBeforeImage();
+    	frame.restore(before);
+    	DbFile file = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
+    	if (file instanceof HeapFile)
+    		((HeapFile) file).pageRolledBack((HeapPage) before);
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -192,17 +408,10 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-    	HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-    	ArrayList<Page> page_list = hf.insertTuple(tid, t);
+    	DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+    	ArrayList<Page> page_list = file.insertTuple(tid, t);
     	for (Page p : page_list) {
-    		PageId pid = p.getId();
-    		//make room to add page to buffer pool if full and not there
-    		if (!this.buffer_pages.containsKey(pid) && this.buffer_pages.size() == max_num_pages) {
-    			evictPage();
-    		}
-    		//p.markDirty(true, tid);
-    		this.buffer_pages.put(pid, p);
-    		this.buffer_pages.get(pid).markDirty(true, tid);
+    		cache_dirty_page(tid, p);
     	}
     }
 
@@ -224,18 +433,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	int tableId = t.getRecordId().getPageId().getTableId();
-    	HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-    	ArrayList<Page> page_list = hf.deleteTuple(tid, t);
+    	DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+    	ArrayList<Page> page_list = file.deleteTuple(tid, t);
     	if (page_list != null) {
 	    	for (Page p : page_list) {
-	    		PageId pid = p.getId();
-	    		//make room to add page to buffer pool if full and not there
-	    		if (!this.buffer_pages.containsKey(pid) && this.buffer_pages.size() == max_num_pages) {
-	    			evictPage();
-	    		}
-	    		//p.markDirty(true, tid);
-	    		this.buffer_pages.put(pid, p);
-	    		this.buffer_pages.get(pid).markDirty(true, tid);
+	    		cache_dirty_page(tid, p);
 	    	}
     	}
     }
@@ -266,8 +468,8 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	this.buffer_pages.remove(pid);
-    	
+    	if (this.buffer_pages.remove(pid) != null)
+    		replacer.pageRemoved(pid);
     }
     
 
@@ -280,10 +482,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	DbFile data = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    	HeapPage pg = (HeapPage) this.buffer_pages.get(pid);
+    	Frame frame = this.buffer_pages.get(pid);
+    	Page pg = frame == null ? null : frame.page;
     	if (pg != null && pg.isDirty() != null) {
     		pg.markDirty(false, null);
-    		data.writePage((Page) pg);
+    		data.writePage(pg);
     		pg.setBeforeImage();
     		
     	}
@@ -296,9 +499,10 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	for (PageId pg : this.buffer_pages.keySet()) {
-    		HeapPage page = (HeapPage) this.buffer_pages.get(pg);
-    		if (page.isDirty() == tid)
+    	for (Map.Entry<PageId, Frame> e : this.buffer_pages.entrySet()) {
+    		PageId pg = e.getKey();
+    		Page page = e.getValue().page;
+    		if (page != null && page.isDirty() == tid)
     			this.flushPage(pg);
     		
     	}
@@ -308,30 +512,19 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the pool's ReplacementPolicy; dirty pages are
+     * never evicted.
      * @throws IOException 
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-    	ArrayList<PageId> not_dirty_pages = new ArrayList<PageId>();
-    	for (PageId pid : this.buffer_pages.keySet()) {
-    		if (this.buffer_pages.get(pid).isDirty() == null) {
-    			//System.out.println("DIRTY PAGE: "+pid);
-    			//only want to evict clean pages
-    			not_dirty_pages.add(pid);
-    		}
-    	}
-    	if (not_dirty_pages.size() == 0) {
+    	PageId to_evict = replacer.chooseVictim(clean_pages);
+    	if (to_evict == null) {
     		throw new DbException("No page was evcited");
     	}
-    	//System.out.println("buffer pool"+this.max_num_pages);
-    	//System.out.println(not_dirty_pages.size()+"SIZE");
-    	int ind = (int) Math.floor(Math.random()*not_dirty_pages.size());
-    	//System.out.println("index"+ind);
-    			
-    	PageId to_evict = not_dirty_pages.get((int) Math.floor(Math.random()*not_dirty_pages.size()));
     	try {
-    		assert this.buffer_pages.get(to_evict).isDirty() == null : "Evicitng dirty page";
+    		assert this.buffer_pages.get(to_evict).is_clean() : "Evicitng dirty page";
 			flushPage(to_evict);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -340,8 +533,90 @@ public class BufferPool {
     	
     }
 
-}
+    /**
+     * Only clean, unpinned pages may be evicted (NO STEAL). A frame accepted
+     * here is retired, so it can no longer be pinned.
+     */
+    private final ReplacementPolicy.VictimFilter clean_pages = new ReplacementPolicy.VictimFilter() {
+    	public boolean canEvict(PageId pid) {
+    		Frame frame = buffer_pages.get(pid);
+    		if (frame == null || !frame.retire())
+    			return false;
+    		if (frame.is_clean())
+    			return true;
+    		frame.unretire();
+    		return false;
+    	}
+    };
 
+    /**
+     * A slot in the page table. The page is read lazily by the first thread
+     * that pins the frame, under the frame's own monitor, so a miss only holds
+     * the pool monitor while the frame is created and not during the I/O.
+     */
+    private static class Frame {
+    	volatile Page page;
+    	/** Number of threads using the frame, or -1 once it has been evicted. */
+    	private final AtomicInteger pins = new AtomicInteger(0);
 
+    	Frame(Page page) {
+    		this.page = page;
+    	}
 
+    	boolean pin() {
+    		while (true) {
+    			int p = pins.get();
+    			if (p < 0)
+    				return false;
+    			if (pins.compareAndSet(p, p + 1))
+    				return true;
+    		}
+    	}
+
+    	void unpin() {
+    		pins.decrementAndGet();
+    	}
 
+    	boolean retire() {
+    		return pins.compareAndSet(0, -1);
+    	}
+
+    	void unretire() {
+    		pins.compareAndSet(-1, 0);
+    	}
+
+    	boolean is_clean() {
+    		Page p = page;
+    		return p == null || p.isDirty() == null;
+    	}
+
+    	Page load(PageId pid) {
+    		Page p = page;
+    		if (p != null)
+    			return p;
+    		synchronized (this) {
+    			if (page == null) {
+    				DbFile data = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    				page = data.readPage(pid);
+    			}
+    			return page;
+    		}
+    	}
+
+    	/**
+    	 * Replaces the frame's page with p, dirtied by tid. Taken under the
+    	 * same monitor as load, so a concurrent read from disk cannot
+    	 * overwrite it with a clean copy.
+    	 */
+    	synchronized void install(Page p, TransactionId tid) {
+    		page = p;
+    		p.markDirty(true, tid);
+    	}
+
+    	/** Replaces the frame's page with a before-image, on abort. */
+    	synchronized void restore(Page p) {
+    		page = p;
+    	}
+    }
+
+}
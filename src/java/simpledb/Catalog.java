@@ -170,6 +170,10 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form <tt>name (field type [pk] [btree], ...) [slotted]</tt>.
+     * A table with a field annotated <tt>btree</tt> is stored as a {@link BTreeFile}
+     * clustered on that field; any other table is stored as a {@link HeapFile},
+     * of {@link SlottedHeapPage}s if the line ends with <tt>slotted</tt>.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -183,10 +187,16 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String option = line.substring(line.indexOf(")") + 1).trim();
+                if (!option.equals("") && !option.equals("slotted")) {
+                    System.out.println("Unknown table option " + option);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                int btreeKey = -1;
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -198,11 +208,18 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("btree")) {
+                            if (btreeKey != -1) {
+                                System.out.println("Table " + name + " has more than one btree key");
+                                System.exit(0);
+                            }
+                            btreeKey = names.size() - 1;
+                        }
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -210,7 +227,16 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (btreeKey >= 0 && !option.equals("")) {
+                    System.out.println("Table " + name + " has a btree key and is " + option);
+                    System.exit(0);
+                }
+                if (btreeKey >= 0)
+                    tabHf = new BTreeFile(tabFile, btreeKey, t);
+                else
+                    tabHf = new HeapFile(tabFile, t, option.equals("slotted"));
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array
+ * of frames with one reference bit each; a hit sets the bit and the clock
+ * hand clears bits as it sweeps, evicting the first evictable page whose bit
+ * is already clear. Every operation is O(1) amortized.
+ * <p>
+ * A hit only sets a volatile flag, so pageAccessed needs no lock.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+	private static class ClockFrame {
+		final PageId pid;
+		volatile boolean referenced;
+
+		ClockFrame(PageId pid) {
+			this.pid = pid;
+			this.referenced = true;
+		}
+	}
+
+	private ArrayList<ClockFrame> frames;
+	private ConcurrentHashMap<PageId, ClockFrame> frame_of;
+	private HashMap<PageId, Integer> slot_of;
+	private ArrayDeque<Integer> free_slots;
+	private int hand;
+
+	/**
+	 * @param numPages expected number of frames (the clock grows if more
+	 *            pages are resident)
+	 */
+	public ClockPolicy(int numPages) {
+		this.frames = new ArrayList<ClockFrame>(numPages);
+		this.frame_of = new ConcurrentHashMap<PageId, ClockFrame>();
+		this.slot_of = new HashMap<PageId, Integer>();
+		this.free_slots = new ArrayDeque<Integer>();
+		this.hand = 0;
+	}
+
+	public void pageLoaded(PageId pid) {
+		if (slot_of.containsKey(pid)) {
+			pageAccessed(pid);
+			return;
+		}
+		ClockFrame frame = new ClockFrame(pid);
+		Integer slot = free_slots.poll();
+		if (slot == null) {
+			slot = frames.size();
+			frames.add(frame);
+		} else {
+			frames.set(slot, frame);
+		}
+		slot_of.put(pid, slot);
+		frame_of.put(pid, frame);
+	}
+
+	public void pageAccessed(PageId pid) {
+		ClockFrame frame = frame_of.get(pid);
+		if (frame != null)
+			frame.referenced = true;
+	}
+
+	public void pageRemoved(PageId pid) {
+		Integer slot = slot_of.remove(pid);
+		if (slot != null) {
+			frame_of.remove(pid);
+			frames.set(slot, null);
+			free_slots.push(slot);
+		}
+	}
+
+	public PageId chooseVictim(VictimFilter filter) {
+		int n = frames.size();
+		// two sweeps: the first may only clear reference bits
+		for (int i = 0; i < 2 * n; i++) {
+			if (hand >= n)
+				hand = 0;
+			ClockFrame frame = frames.get(hand++);
+			if (frame == null)
+				continue;
+			if (frame.referenced) {
+				frame.referenced = false;
+				continue;
+			}
+			if (filter.canEvict(frame.pid)) {
+				pageRemoved(frame.pid);
+				return frame.pid;
+			}
+		}
+		return null;
+	}
+}
@@ -86,6 +86,24 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Reads the child a batch at a time and deselects the rows that do not
+     * pass the predicate.
+     * 
+     * @return The next batch with a row that passes the filter, or null if
+     *         there are no more tuples
+     * @see Predicate#filter(TupleBatch)
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+    	TupleBatch batch;
+    	while ((batch = TupleBatch.next(this.kid)) != null) {
+    		this.pred.filter(batch);
+    		if (batch.size() > 0)
+    			return batch;
+    	}
+    	return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
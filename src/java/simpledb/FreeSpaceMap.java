@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records, one bit per page, which pages of a HeapFile may have
+ * a free slot, so an insert can go straight to such a page instead of
+ * examining every page of the file.
+ * <p>
+ * The map lives in memory only. It is built the first time its HeapFile
+ * needs it, by reading every page of the file once, and is kept up to date
+ * from then on: bits change when a page fills up, has a tuple deleted, is
+ * appended, or is rolled back by an abort. Nothing is written next to the
+ * heap file, whose format is unchanged.
+ * <p>
+ * The bits are hints. Inserts check the page itself before using it and clear
+ * the bit of a page that turns out to be full, so a stale "free" bit costs one
+ * extra page lookup and never a wrong insert. Pages past the end of the map
+ * are treated as free.
+ */
+public class FreeSpaceMap {
+
+    private final BitSet free;
+    /** number of pages the map covers */
+    private int num_pages;
+    /** page the next search starts from */
+    private int cursor;
+
+    private FreeSpaceMap(BitSet free, int num_pages) {
+        this.free = free;
+        this.num_pages = num_pages;
+        this.cursor = 0;
+    }
+
+    /** Builds the map of hf by reading every page of hf from disk. */
+    public static FreeSpaceMap build(HeapFile hf) {
+        int file_pages = hf.numPages();
+        BitSet free = new BitSet(file_pages);
+        for (int i = 0; i < file_pages; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            if (page.getNumEmptySlots() > 0)
+                free.set(i);
+        }
+        return new FreeSpaceMap(free, file_pages);
+    }
+
+    /**
+     * Returns a page that may have a free slot, or -1 if the file has none.
+     * The search resumes where the last one ended and wraps around.
+     *
+     * @param file_pages the current number of pages in the heap file
+     */
+    public synchronized int find(int file_pages) {
+        if (file_pages > this.num_pages) {
+            this.free.set(this.num_pages, file_pages);
+            this.num_pages = file_pages;
+        }
+        int pg = this.free.nextSetBit(this.cursor);
+        if (pg < 0 || pg >= this.num_pages)
+            pg = this.free.nextSetBit(0);
+        if (pg < 0 || pg >= this.num_pages)
+            return -1;
+        this.cursor = pg;
+        return pg;
+    }
+
+    /** Records whether page pg has a free slot. */
+    public synchronized void set_free(int pg, boolean has_room) {
+        if (pg >= this.num_pages) {
+            this.free.set(this.num_pages, pg + 1);
+            this.num_pages = pg + 1;
+        }
+        this.free.set(pg, has_room);
+    }
+
+    /** @return whether page pg is marked as having a free slot */
+    public synchronized boolean is_free(int pg) {
+        return pg >= this.num_pages || this.free.get(pg);
+    }
+}
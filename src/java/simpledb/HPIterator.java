@@ -14,25 +14,33 @@ public class HPIterator implements Iterator<Tuple> {
 
 	public HPIterator(HeapPage hp) {
 		this.heap_page = hp;
-		this.num_tuples = hp.getNonEmptyTuples();
-		this.current_tup_index = 0;
+		this.current_slot = 0;
 		
 	}
 	
 	
 	public boolean hasNext() {
-		if (this.current_tup_index < this.num_tuples) {
-			return true;
-		}
-		else {
-			return false;
+		// Can't return tuples in empty slots --> skip them
+		while (this.current_slot < this.heap_page.numSlots && !this.heap_page.isSlotUsed(this.current_slot)) {
+			this.current_slot++;
 		}
+		return this.current_slot < this.heap_page.numSlots;
 	}
 
 	
 	public Tuple next() {
-		// Can't return tuples in empty slots --> skip them
-		return heap_page.tuples[this.current_tup_index++];
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return heap_page.getTuple(this.current_slot++);
+	}
+
+	/**
+	 * Appends the remaining tuples of the page to b, until it is full.
+	 * @see HeapPage#fillBatch
+	 */
+	public void fill(TupleBatch b) {
+		this.current_slot = heap_page.fillBatch(b, this.current_slot);
 	}
 	
 	
@@ -40,8 +48,7 @@ public class HPIterator implements Iterator<Tuple> {
 		throw new UnsupportedOperationException("Not allowed to remove"); 
 	}
 	
-	private int num_tuples;
 	private HeapPage heap_page;
-	private int current_tup_index;
+	private int current_slot;
 	
 }
@@ -1,9 +1,12 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates, with a hybrid hash join that spills partitions to
+ * temporary files when the left child does not fit in memory.
  */
 public class HashEquiJoin extends Operator {
 
@@ -26,6 +29,20 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor with a memory budget.
+     * 
+     * @param maxTuples
+     *            The number of left tuples the join may hold in memory before
+     *            it spills partitions to disk
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int maxTuples) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("HashEquiJoin needs an equality predicate");
+        this.maxTuples = Math.max(maxTuples, 1);
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
@@ -50,57 +67,274 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** Default number of build-side tuples held in memory at a time. */
     public final static int MAP_SIZE = 20000;
+    /** Number of partitions each pass hashes its inputs into. */
+    public final static int FANOUT = 16;
+    /**
+     * Partitioning depth after which a pass stops repartitioning and joins
+     * its build side a memory-full at a time instead.
+     */
+    private final static int MAX_LEVEL = 4;
+
+    /**
+     * One build/probe pair to join: the children themselves, or a pair of
+     * partitions spilled by an earlier pass.
+     */
+    private static class Pass {
+        final OpIterator build, probe;
+        /** the spill files behind build and probe, or null for the children */
+        final SpillFile buildFile, probeFile;
+        final int level;
+        /** whether the build side is loaded a memory-full at a time */
+        final boolean chunked;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        Pass(OpIterator build, OpIterator probe, SpillFile buildFile, SpillFile probeFile,
+                int level, boolean chunked) {
+            this.build = build;
+            this.probe = probe;
+            this.buildFile = buildFile;
+            this.probeFile = probeFile;
+            this.level = level;
+            this.chunked = chunked;
+        }
+    }
+
+    private final int maxTuples;
+    transient private Pass pass = null;
+    /** spilled partition pairs still to be joined, deepest first */
+    transient private ArrayDeque<Pass> pending = null;
+    /** the resident partitions of the current pass, and their sizes */
+    transient private ArrayList<HashMap<Field, ArrayList<Tuple>>> parts = null;
+    transient private int[] partSize = null;
+    /** spill files of the partitions that did not fit, null while resident */
+    transient private SpillFile[] buildSpill = null;
+    transient private SpillFile[] probeSpill = null;
+    /** number of build tuples in memory, and read by the current pass */
+    transient private int resident = 0;
+    transient private int buildCount = 0;
+
+    private void startPass(Pass next) throws DbException, TransactionAbortedException {
+        pass = next;
+        parts = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(FANOUT);
+        for (int i = 0; i < FANOUT; i++)
+            parts.add(new HashMap<Field, ArrayList<Tuple>>());
+        partSize = new int[FANOUT];
+        buildSpill = new SpillFile[FANOUT];
+        probeSpill = new SpillFile[FANOUT];
+        resident = 0;
+        buildCount = 0;
+        listIt = null;
+        if (pass.buildFile != null) {
+            pass.build.open();
+            pass.probe.open();
+        }
+        if (pass.chunked)
+            loadChunk();
+        else
+            build();
+    }
+
+    /**
+     * Reads the whole build side of the pass. Partitions are kept in memory
+     * until more than maxTuples tuples are resident; then the largest
+     * resident partition is written out, and its later tuples (on both
+     * sides) go straight to its spill files.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        while (pass.build.hasNext()) {
+            t1 = pass.build.next();
+            buildCount++;
+            Field key = t1.getField(pred.getField1());
+            int p = partition(key, pass.level);
+            if (buildSpill[p] != null) {
+                spill(buildSpill[p], t1);
+                continue;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            addToMap(p, key, t1);
+            if (resident > maxTuples)
+                spillLargest();
+        }
+    }
+
+    /**
+     * Loads the next maxTuples build tuples of a chunked pass.
+     *
+     * @return false if the build side is exhausted
+     */
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        parts.get(0).clear();
+        resident = 0;
+        while (resident < maxTuples && pass.build.hasNext()) {
+            t1 = pass.build.next();
+            buildCount++;
+            addToMap(0, t1.getField(pred.getField1()), t1);
         }
-        return cnt > 0;
+        return resident > 0;
+    }
 
+    private void addToMap(int p, Field key, Tuple t) {
+        ArrayList<Tuple> list = parts.get(p).get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            parts.get(p).put(key, list);
+        }
+        list.add(t);
+        partSize[p]++;
+        resident++;
+    }
+
+    private void spillLargest() throws DbException {
+        int largest = -1;
+        for (int p = 0; p < FANOUT; p++) {
+            if (buildSpill[p] == null && (largest < 0 || partSize[p] > partSize[largest]))
+                largest = p;
+        }
+        try {
+            buildSpill[largest] = new SpillFile(child1.getTupleDesc());
+            probeSpill[largest] = new SpillFile(child2.getTupleDesc());
+        } catch (IOException e) {
+            throw new DbException("could not create spill file for hash join");
+        }
+        for (ArrayList<Tuple> list : parts.get(largest).values()) {
+            for (Tuple t : list)
+                spill(buildSpill[largest], t);
+        }
+        parts.get(largest).clear();
+        resident -= partSize[largest];
+        partSize[largest] = 0;
+    }
+
+    private void spill(SpillFile f, Tuple t) throws DbException {
+        try {
+            f.add(t);
+        } catch (IOException e) {
+            throw new DbException("hash join could not write spill file");
+        }
+    }
+
+    /**
+     * Queues the partition pairs the current pass spilled, releases its
+     * files and starts the next pass.
+     *
+     * @return false if there is no pass left
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        for (int p = FANOUT - 1; p >= 0; p--) {
+            if (buildSpill[p] == null)
+                continue;
+            if (buildSpill[p].size() == 0 || probeSpill[p].size() == 0) {
+                buildSpill[p].delete();
+                probeSpill[p].delete();
+                continue;
+            }
+            // a partition that did not shrink (one key, or colliding keys)
+            // will not be split by rehashing either
+            boolean chunked = pass.level + 1 > MAX_LEVEL || buildSpill[p].size() == buildCount;
+            try {
+                pending.push(new Pass(buildSpill[p].iterator(), probeSpill[p].iterator(), buildSpill[p],
+                        probeSpill[p], pass.level + 1, chunked));
+            } catch (IOException e) {
+                throw new DbException("hash join could not write spill file");
+            }
+        }
+        buildSpill = null;
+        probeSpill = null;
+        endPass(pass);
+        pass = null;
+        parts = null;
+        if (pending.isEmpty())
+            return false;
+        startPass(pending.pop());
+        return true;
+    }
+
+    private static void endPass(Pass p) {
+        if (p.buildFile != null) {
+            p.build.close();
+            p.probe.close();
+            p.buildFile.delete();
+            p.probeFile.delete();
+        }
+    }
+
+    /** Deletes every spill file of the current and pending passes. */
+    private void discardPasses() {
+        if (pass != null) {
+            for (int p = 0; buildSpill != null && p < FANOUT; p++) {
+                if (buildSpill[p] != null) {
+                    buildSpill[p].delete();
+                    probeSpill[p].delete();
+                }
+            }
+            endPass(pass);
+        }
+        if (pending != null) {
+            for (Pass p : pending)
+                endPass(p);
+            pending.clear();
+        }
+        pass = null;
+        parts = null;
+        buildSpill = null;
+        probeSpill = null;
+        listIt = null;
+    }
+
+    /**
+     * Maps a join key to a partition. Each level mixes the key's hash
+     * differently, so keys that shared a partition on one level are spread
+     * over the next.
+     */
+    private static int partition(Field key, int level) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % FANOUT;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        pending = new ArrayDeque<Pass>();
+        startPass(new Pass(child1, child2, null, null, 0, false));
         super.open();
     }
 
     public void close() {
         super.close();
+        discardPasses();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        discardPasses();
         child1.rewind();
         child2.rewind();
+        startPass(new Pass(child1, child2, null, null, 0, false));
     }
 
     transient Iterator<Tuple> listIt = null;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * more tuples.
+     * <p>
+     * This is a hybrid hash join. The left child is the build side: it is
+     * hashed on the join field into FANOUT partitions, all held in memory as
+     * long as they fit in the budget given to the constructor. When they do
+     * not, the largest partitions are written to temporary files and the
+     * right child's tuples that fall in those partitions are written out
+     * too; the rest of the right child is joined against the resident
+     * partitions as it streams by. Each spilled pair of partitions is then
+     * joined the same way, rehashed with a different hash, so the right
+     * child is scanned once however large the left one is. A partition that
+     * rehashing cannot split (one very frequent key) is joined a
+     * memory-full at a time against its spilled right-hand partition.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -131,32 +365,62 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        if (!nextMatch())
+            return null;
+        return processList();
+    }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+    /**
+     * Operator.fetchNextBatch implementation: fills a batch with the fields
+     * of matching pairs, without making a Tuple for each.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (!nextMatch())
+            return null;
+        TupleBatch batch = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
+        do {
+            batch.add(listIt.next(), t2);
+        } while (!batch.isFull() && nextMatch());
+        return batch;
+    }
 
-            return processList();
+    /**
+     * Moves to the next pair of matching tuples: t2, and the next tuple of
+     * listIt.
+     *
+     * @return false if there are no more
+     */
+    private boolean nextMatch() throws TransactionAbortedException, DbException {
+        while (pass != null) {
+            if (listIt != null && listIt.hasNext()) {
+                return true;
+            }
+            listIt = null;
 
-        }
+            // loop around the probe side; nothing can match an empty build side
+            if (buildCount > 0 && pass.probe.hasNext()) {
+                t2 = pass.probe.next();
+                Field key = t2.getField(pred.getField2());
+                int p = pass.chunked ? 0 : partition(key, pass.level);
+                if (probeSpill[p] != null) {
+                    spill(probeSpill[p], t2);
+                    continue;
+                }
+                ArrayList<Tuple> l = parts.get(p).get(key);
+                if (l != null)
+                    listIt = l.iterator();
+                continue;
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // probe side is done: load the next chunk, or move to the next pass
+            if (pass.chunked && loadChunk()) {
+                pass.probe.rewind();
+                continue;
+            }
+            nextPass();
         }
 
-        return null;
+        return false;
     }
 
     @Override
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -9,6 +12,33 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Page I/O goes through one FileChannel per HeapFile that stays open for the
+ * life of the object, using positional reads and writes through a per-thread
+ * page buffer. The page count is cached: it is read from the file system on
+ * first use and bumped by writes that extend the file, and the scan, insert
+ * and read paths only use the cached value. The public numPages() still asks
+ * the file system (an fstat on the open channel rather than a path lookup)
+ * and refreshes the cache, so code that grows the file behind the HeapFile's
+ * back can make the new pages visible by calling it.
+ * <p>
+ * Read-mostly tables can be switched to memory-mapped reads with
+ * {@link #setMemoryMapped}; writes always go through the channel.
+ * <p>
+ * Scans read ahead: while a scan moves through the file page by page, the
+ * pages after the current one are handed to
+ * {@link BufferPool#prefetchPages} so they are loaded in the background. The
+ * window starts at one page and doubles with every page the scan advances, up
+ * to a per-iterator limit (see {@link #iterator(TransactionId, int)}).
+ * <p>
+ * Inserts find a page with room through an in-memory {@link FreeSpaceMap},
+ * built from the file on the first insert or delete, rather than by
+ * scanning the file each time.
+ * <p>
+ * A table is stored in one of two page layouts, chosen when its HeapFile is
+ * made: fixed-size slots ({@link HeapPage}), or a slot directory with
+ * variable-length strings ({@link SlottedHeapPage}), which suits tables of
+ * short strings.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,6 +48,18 @@ public class HeapFile implements DbFile {
 	private TupleDesc tup_schema;
 	private File heap_file;
 	private int unique_id;
+	private final boolean slotted;
+	
+	private volatile FileChannel channel;
+	private volatile MappedFile mapped;
+	private volatile FreeSpaceMap free_space;
+	/** cached length of the backing file in bytes, -1 until first needed */
+	private volatile long file_bytes;
+	
+	private static final ThreadLocal<ByteBuffer> page_buffers = new ThreadLocal<ByteBuffer>();
+	
+	/** Default upper bound on the read-ahead window of a scan, in pages. */
+	public static final int DEFAULT_READ_AHEAD = 8;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,9 +70,135 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+    	this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, in the page
+     * layout given.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param slotted
+     *            true to store the pages as {@link SlottedHeapPage}s, false
+     *            for {@link HeapPage}s
+     */
+    public HeapFile(File f, TupleDesc td, boolean slotted) {
     	this.heap_file = f;
+    	this.slotted = slotted;
     	this.tup_schema = td;
     	this.unique_id = f.getAbsoluteFile().hashCode();
+    	this.channel = null;
+    	this.mapped = null;
+    	this.free_space = null;
+    	this.file_bytes = -1;
+    }
+    
+    /**
+     * Turns memory-mapped reads on or off. When on, readPage copies pages out
+     * of a read-only mapping of the file instead of issuing a read per page.
+     */
+    public synchronized void setMemoryMapped(boolean mmap) throws IOException {
+    	if (mmap && this.mapped == null) {
+    		this.mapped = new MappedFile(this.heap_file);
+    	} else if (!mmap && this.mapped != null) {
+    		this.mapped.close();
+    		this.mapped = null;
+    	}
+    }
+    
+    public boolean isMemoryMapped() {
+    	return this.mapped != null;
+    }
+    
+    /** @return true if the pages of this file are SlottedHeapPages */
+    public boolean isSlotted() {
+    	return this.slotted;
+    }
+    
+    /** @return the bytes of an empty page of this file's layout */
+    private byte[] empty_page_data() {
+    	if (this.slotted)
+    		return SlottedHeapPage.createEmptyPageData();
+    	return HeapPage.createEmptyPageData();
+    }
+    
+    /** Makes a page of this file's layout from its bytes. */
+    private HeapPage make_page(HeapPageId pid, byte[] data) throws IOException {
+    	if (this.slotted)
+    		return new SlottedHeapPage(pid, data);
+    	return new HeapPage(pid, data);
+    }
+    
+    /**
+     * Returns the channel to the backing file, opening (and creating) the
+     * file on first use.
+     */
+    private FileChannel get_channel() throws IOException {
+    	FileChannel c = this.channel;
+    	if (c == null) {
+    		synchronized (this) {
+    			if (this.channel == null) {
+    				this.channel = FileChannel.open(this.heap_file.toPath(), StandardOpenOption.READ,
+    						StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    			}
+    			c = this.channel;
+    		}
+    	}
+    	return c;
+    }
+    
+    /**
+     * Returns the free-space map of this file, building it on first use.
+     */
+    private FreeSpaceMap free_space_map() {
+    	FreeSpaceMap m = this.free_space;
+    	if (m == null) {
+    		synchronized (this) {
+    			if (this.free_space == null)
+    				this.free_space = FreeSpaceMap.build(this);
+    			m = this.free_space;
+    		}
+    	}
+    	return m;
+    }
+    
+    /** Returns this thread's page-sized I/O buffer, cleared. */
+    private static ByteBuffer page_buffer() {
+    	int page_size = BufferPool.getPageSize();
+    	ByteBuffer buf = page_buffers.get();
+    	if (buf == null || buf.capacity() != page_size) {
+    		buf = ByteBuffer.allocateDirect(page_size);
+    		page_buffers.set(buf);
+    	}
+    	buf.clear();
+    	return buf;
+    }
+    
+    /**
+     * Called by the BufferPool when an abort puts the before-image of one of
+     * this file's pages back, so the free-space map does not keep calling a
+     * page full whose filling insert was rolled back.
+     */
+    void pageRolledBack(HeapPage page) {
+    	FreeSpaceMap m = this.free_space;
+    	if (m != null)
+    		m.set_free(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
+    }
+    
+    /**
+     * Closes the channel to the backing file. It is reopened if the file is
+     * used again.
+     */
+    public synchronized void close() throws IOException {
+    	if (this.mapped != null)
+    		this.mapped.close();
+    	this.free_space = null;
+    	if (this.channel != null) {
+    		this.channel.close();
+    		this.channel = null;
+    	}
     }
     
 
@@ -73,17 +241,29 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) throws UnsupportedOperationException {
         // some code goes here
     	int tableid = pid.getTableId();
-    	final int pg_size = Database.getBufferPool().getPageSize();
+    	final int pg_size = BufferPool.getPageSize();
     	byte[] output_page = HeapPage.createEmptyPageData();
     	try {
-			RandomAccessFile rfile = new RandomAccessFile(this.heap_file, "r");
-			rfile.seek(pg_size*pid.getPageNumber());
-			rfile.readFully(output_page);
-			rfile.close();
-			return new HeapPage(new HeapPageId(tableid, pid.getPageNumber()), output_page);
+    		if (pid.getPageNumber() >= this.cached_num_pages() && pid.getPageNumber() >= this.numPages()) {
+    			throw new UnsupportedOperationException("page " + pid.getPageNumber() + " is past the end of the file");
+    		}
+    		long pos = (long) pg_size * pid.getPageNumber();
+    		MappedFile m = this.mapped;
+    		if (m != null) {
+    			if (!m.read(pos, output_page))
+    				throw new EOFException();
+    			return make_page(new HeapPageId(tableid, pid.getPageNumber()), output_page);
+    		}
+    		FileChannel c = this.get_channel();
+    		ByteBuffer buf = page_buffer();
+    		while (buf.hasRemaining()) {
+    			if (c.read(buf, pos + buf.position()) < 0)
+    				throw new EOFException();
+    		}
+    		buf.flip();
+    		buf.get(output_page);
+			return make_page(new HeapPageId(tableid, pid.getPageNumber()), output_page);
     	
-    	} catch (FileNotFoundException e) {
-			throw new UnsupportedOperationException("file not found");
 		} catch (IOException e) {
 			throw new UnsupportedOperationException("io exception");
 		}
@@ -93,39 +273,88 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1	
-    	RandomAccessFile rfile = new RandomAccessFile(this.heap_file, "rw");
     	PageId pid = page.getId();
-    	int page_size = Database.getBufferPool().getPageSize();
-    	int start_pos = page_size * pid.getPageNumber();
-    	rfile.seek(start_pos);
-    	rfile.write(page.getPageData(), 0, page_size);
-    	rfile.close();	
+    	int page_size = BufferPool.getPageSize();
+    	long start_pos = (long) page_size * pid.getPageNumber();
+    	FileChannel c = this.get_channel();
+    	ByteBuffer buf = page_buffer();
+    	if (page instanceof HeapPage)
+    		((HeapPage) page).writeTo(buf);
+    	else
+    		buf.put(page.getPageData(), 0, page_size);
+    	buf.flip();
+    	while (buf.hasRemaining()) {
+    		c.write(buf, start_pos + buf.position());
+    	}
+    	synchronized (this) {
+    		if (start_pos + page_size > this.file_length())
+    			this.file_bytes = start_pos + page_size;
+    	}
     	//System.out.print("new page"+ this.numPages());
     	//HeapPage hp = (HeapPage) page;
     	//System.out.print("empty slots"+hp.getNumEmptySlots());
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Returns the number of pages in this HeapFile, as the file system sees
+     * it now. Internal paths use the cached count instead.
      */
     public int numPages() {
         // some code goes here
-    	final int page_size = Database.getBufferPool().getPageSize();
-    	int hf_size = (int) this.heap_file.length();
-        return (int) hf_size/page_size;
-    }
-
-    private HeapPage next_empty_page(TransactionId tid) throws TransactionAbortedException, DbException {
-    	for (int i = 0; i < this.numPages(); i++) {
-    		HeapPageId pid = new HeapPageId(this.getId(), i);
-    		HeapPage new_page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-    		//System.out.print("check here");
-    		if (new_page.getNumEmptySlots() > 0) {
-    			//System.out.print("new page printed");
-    			return new_page;
-    		}
+    	final int page_size = BufferPool.getPageSize();
+    	long len;
+    	FileChannel c = this.channel;
+    	try {
+    		len = c != null ? c.size() : this.heap_file.length();
+    	} catch (IOException e) {
+    		len = this.heap_file.length();
+    	}
+    	this.file_bytes = len;
+        return (int) (len/page_size);
+    }
+    
+    /**
+     * Returns the page count as of the last numPages() call or append,
+     * without touching the file system after the first call.
+     */
+    private int cached_num_pages() {
+    	long len = this.file_bytes;
+    	if (len < 0)
+    		return this.numPages();
+    	return (int) (len/BufferPool.getPageSize());
+    }
+    
+    private long file_length() {
+    	long len = this.file_bytes;
+    	if (len < 0) {
+    		this.numPages();
+    		len = this.file_bytes;
+    	}
+    	return len;
+    }
+
+    /**
+     * Returns a page with room for t, locked READ_WRITE, or null if every
+     * page is full. Candidates come from the free-space map; a candidate that
+     * turns out to be full is marked so and, unless the transaction already
+     * held a lock on it, released again, so full pages are not left locked.
+     * (A slotted page too full for t is marked full as well, until its next
+     * delete, even if smaller tuples would still fit.)
+     */
+    private HeapPage next_empty_page(TransactionId tid, Tuple t) throws TransactionAbortedException, DbException, IOException {
+    	FreeSpaceMap fsm = this.free_space_map();
+    	BufferPool bp = Database.getBufferPool();
+    	int pg;
+    	while ((pg = fsm.find(this.cached_num_pages())) >= 0) {
+    		HeapPageId pid = new HeapPageId(this.getId(), pg);
+    		boolean held = bp.holdsLock(tid, pid);
+    		HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+    		if (page.hasRoomFor(t))
+    			return page;
+    		fsm.set_free(pg, false);
+    		if (!held)
+    			bp.releasePage(tid, pid);
     	}
-    	//System.out.print("null page");
     	return null;
     }
     
@@ -134,22 +363,22 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here - added in lab 2
-    	HeapPage current_page = this.next_empty_page(tid);
+    	if (!this.tup_schema.equals(t.getTupleDesc()))
+    		throw new DbException("tuple does not match the table's TupleDesc");
+    	HeapPage hp = this.next_empty_page(tid, t);
     	ArrayList<Page> page_list = new ArrayList<Page>();
-    	//System.out.print(current_page.toString());
-    	if (current_page == null) {
-    		//System.out.print("here");
+    	if (hp == null) {
     		//Create a new heap page
-    		int new_page_no = this.numPages();
+    		int new_page_no = this.cached_num_pages();
     		HeapPageId pid = new HeapPageId(this.getId(), new_page_no);
-    		current_page = new HeapPage(pid, HeapPage.createEmptyPageData());
     		//Add page to disk
-    		this.writePage(current_page);
+    		this.writePage(this.make_page(pid, this.empty_page_data()));
+    		hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
     	}
 
-    	PageId pid = current_page.pid;
-    	HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
     	hp.insertTuple(t); //could fail to insert if td doesnt match
+    	if (hp.getNumEmptySlots() == 0)
+    		this.free_space_map().set_free(hp.getId().getPageNumber(), false);
     	page_list.add(hp);
     	
     	return page_list;   
@@ -157,44 +386,50 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         // some code goes here - implemented in lab2
     	PageId pg = t.getRecordId().getPageId();
 		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pg, Permissions.READ_WRITE);
 		page.deleteTuple(t);
+		this.free_space_map().set_free(pg.getPageNumber(), true);
 		return new ArrayList<Page> (Arrays.asList(page));
     }
     
-    private class HFIterator implements DbFileIterator {
+    /**
+     * Iterator over the tuples of a HeapFile, page by page. Besides the
+     * DbFileIterator methods, it can fill a batch straight from the pages.
+     */
+    class HFIterator implements DbFileIterator {
     	
     	//constructor
-    	public HFIterator(HeapFile hp, TransactionId tid) {
+    	public HFIterator(HeapFile hp, TransactionId tid, int read_ahead) {
     		this.txn_id = tid;
     		this.tup_iterator = null;
     		this.current_page = null;
     		this.heap_file = hp;
+    		this.max_window = Math.max(read_ahead, 0);
     	}
     	
     	
 		@Override
 		public void open() throws DbException, TransactionAbortedException {	
 			this.current_page = 0;
+			this.window = 0;
+			this.prefetched_to = 1;
 			this.tup_iterator = get_tup_iterator(this.current_page);
 		}
 
 		@Override
 		public boolean hasNext() throws DbException, TransactionAbortedException {
 			if (this.current_page != null) {
-				while (this.current_page < this.heap_file.numPages() -1) {
-					if (this.tup_iterator.hasNext()) {
-						return true;
-					}
-					else {
-						this.current_page++;
-						this.tup_iterator = get_tup_iterator(this.current_page);
+				while (!this.tup_iterator.hasNext()) {
+					if (this.current_page >= this.heap_file.cached_num_pages() -1) {
+						return false;
 					}
+					this.current_page++;
+					this.tup_iterator = get_tup_iterator(this.current_page);
 				}
-				return tup_iterator.hasNext();
+				return true;
 			} 
 			else {
 				return false;
@@ -211,6 +446,23 @@ public class HeapFile implements DbFile {
 			}
 		}
 
+		/**
+		 * Returns the next tuples of the file, decoded from the pages into a
+		 * batch without making a Tuple for each.
+		 *
+		 * @return the batch, or null if there are no more tuples
+		 */
+		public TupleBatch nextBatch(int max) throws DbException, TransactionAbortedException {
+			if (!hasNext()) {
+				return null;
+			}
+			TupleBatch batch = new TupleBatch(this.heap_file.getTupleDesc(), max);
+			while (!batch.isFull() && hasNext()) {
+				this.tup_iterator.fill(batch);
+			}
+			return batch;
+		}
+
 		@Override
 		public void rewind() throws DbException, TransactionAbortedException {
 			close();
@@ -224,14 +476,38 @@ public class HeapFile implements DbFile {
 			this.current_page = null;
 		}
 		
-		private Iterator<Tuple> get_tup_iterator(int pg) throws TransactionAbortedException, DbException {
+		private HPIterator get_tup_iterator(int pg) throws TransactionAbortedException, DbException {
 			HeapPageId hp_pg_id = new HeapPageId(this.heap_file.getId(), this.current_page);
 			HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.txn_id, hp_pg_id, Permissions.READ_ONLY);
+			read_ahead(pg);
 			return page.iterator();			
 		}
+		
+		/**
+		 * Grows the window and asks the buffer pool to load the pages of the
+		 * window after pg that have not been requested yet.
+		 */
+		private void read_ahead(int pg) {
+			if (this.max_window == 0)
+				return;
+			this.window = Math.min(Math.max(this.window * 2, 1), this.max_window);
+			int end = Math.min(pg + 1 + this.window, this.heap_file.cached_num_pages());
+			if (end <= this.prefetched_to)
+				return;
+			ArrayList<PageId> pids = new ArrayList<PageId>();
+			for (int i = Math.max(this.prefetched_to, pg + 1); i < end; i++)
+				pids.add(new HeapPageId(this.heap_file.getId(), i));
+			this.prefetched_to = end;
+			if (!pids.isEmpty())
+				Database.getBufferPool().prefetchPages(this.txn_id, pids);
+		}
     	
-		private Iterator<Tuple> tup_iterator;
+		private HPIterator tup_iterator;
     	private Integer current_page;
+    	private final int max_window;
+    	/** current read-ahead window and the first page not yet prefetched */
+    	private int window;
+    	private int prefetched_to;
     	private final TransactionId txn_id;
     	private HeapFile heap_file;
 
@@ -241,7 +517,15 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HFIterator(this, tid);
+        return new HFIterator(this, tid, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Returns an iterator whose read-ahead window grows to at most readAhead
+     * pages; 0 turns read-ahead off.
+     */
+    public DbFileIterator iterator(TransactionId tid, int readAhead) {
+        return new HFIterator(this, tid, readAhead);
     }
 
 }
@@ -2,10 +2,20 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps the bytes it was read from and decodes a tuple only when it
+ * is asked for (and then keeps it), or single fields straight from the bytes
+ * (see {@link #getField} and {@link #fillBatch}). Inserts and deletes write
+ * through to the bytes, so they always hold the current contents of the
+ * page.
+ * <p>
+ * Every slot of a HeapPage has room for the largest tuple of the table. Tables
+ * made with the slotted layout use {@link SlottedHeapPage} instead.
  *
  * @see HeapFile
  * @see BufferPool
@@ -17,12 +27,25 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    /** the tuples decoded so far, by slot */
     final Tuple tuples[];
     final int numSlots;
+    /**
+     * the page as stored, with slot i at header.length + i * td.getSize();
+     * shared with the creator of the page and with the before-image until
+     * the first write
+     */
+    byte[] data;
+    private boolean data_shared;
     
     private boolean dirty;
     private TransactionId dirt_tid;
 
+    /**
+     * the data of the before-image: the bytes the page was read from, or data
+     * as it was at the last {@link #setBeforeImage()}. It is the same array
+     * as data until the first write, which copies data first.
+     */
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
     
@@ -39,6 +62,10 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * Tuples are decoded from data when they are first needed. The page does
+     * not change data (it copies it before its first insert or delete), but
+     * the caller must not change it either.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -47,27 +74,39 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page data is shorter than a page");
         
         this.dirty = false;
         this.dirt_tid = null;
         
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        System.arraycopy(data, 0, header, 0, header.length);
         
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data = data;
+        this.data_shared = true;
+        this.oldData = data;
+    }
 
-        setBeforeImage();
+    /**
+     * Creates a page for a subclass that lays out data its own way, with no
+     * header and room for up to numSlots tuples.
+     */
+    HeapPage(HeapPageId id, byte[] data, int numSlots) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = numSlots;
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page data is shorter than a page");
+        this.dirty = false;
+        this.dirt_tid = null;
+        this.header = new byte[0];
+        this.tuples = new Tuple[numSlots];
+        this.data = data;
+        this.data_shared = true;
+        this.oldData = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -75,7 +114,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-    	return (int) Math.floor((BufferPool.getPageSize()*8)/ (this.td.getSize()*8+1));
+    	return (BufferPool.getPageSize()*8) / (this.td.getSize()*8+1);
     }
 
     /**
@@ -92,12 +131,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,before_image_data());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -106,10 +140,26 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /** @return the data of the before-image of this page */
+    byte[] before_image_data() {
+        synchronized(oldDataLock)
+        {
+            return oldData;
+        }
+    }
+
+    /**
+     * Makes the page as it is now its before-image, without copying: data is
+     * shared with the image until the next write.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+            if (!data_shared) {
+                System.arraycopy(header, 0, data, 0, header.length);
+                data_shared = true;
+            }
+            oldData = data;
         }
     }
 
@@ -121,38 +171,134 @@ public class HeapPage implements Page {
     	return pid;
     }
 
+    /** @return the offset in the page data of slot i */
+    private int slot_offset(int i) {
+        return header.length + i * td.getSize();
+    }
+
+    int read_int(int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    void write_int(int off, int v) {
+        data[off] = (byte) (v >>> 24);
+        data[off + 1] = (byte) (v >>> 16);
+        data[off + 2] = (byte) (v >>> 8);
+        data[off + 3] = (byte) v;
+    }
+
+    /** @return the value a STRING field is stored with */
+    static String stored_string(Field f) {
+        String s = ((StringField) f).getValue();
+        return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decodes field j of the tuple in slot i from the page data.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Field decode_field(int i, int j) throws NoSuchElementException {
+        int off = slot_offset(i) + td.getOffset(j);
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return new IntField(read_int(off));
+        int len = read_int(off);
+        if (len < 0 || len > Type.STRING_LEN)
+            throw new NoSuchElementException("parsing error!");
+        return new StringField(new String(data, off + 4, len), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the tuple in slot i, decoding it if it has not been yet, or
+     *         null if the slot is empty
+     */
+    Tuple getTuple(int i) throws NoSuchElementException {
+        if (!isSlotUsed(i))
             return null;
+        Tuple t = tuples[i];
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j=0; j<td.numFields(); j++)
+                t.setField(j, decode_field(i, j));
+            tuples[i] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Returns one field of the tuple in a slot, without decoding the rest of
+     * the tuple.
+     *
+     * @param i the slot
+     * @param j the field
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int i, int j) throws NoSuchElementException {
+        if (!isSlotUsed(i))
+            throw new NoSuchElementException("slot " + i + " is empty");
+        if (tuples[i] != null)
+            return tuples[i].getField(j);
+        return decode_field(i, j);
+    }
+
+    /**
+     * Appends the tuples of the used slots from slot i on to a batch, until
+     * the batch is full. INT fields go from the page data straight to the
+     * batch's int columns.
+     *
+     * @return the slot to continue from, or the number of slots if the page
+     *         has no more tuples
+     */
+    public int fillBatch(TupleBatch b, int i) {
+        int nfields = td.numFields();
+        for (; i < numSlots && !b.isFull(); i++) {
+            if (!isSlotUsed(i))
+                continue;
+            int row = b.addRow(new RecordId(pid, i));
+            int off = slot_offset(i);
+            for (int j = 0; j < nfields; j++) {
+                if (b.isIntColumn(j))
+                    b.setInt(j, row, read_int(off + td.getOffset(j)));
+                else
+                    b.setField(j, row, decode_field(i, j));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+        return i;
+    }
 
-        return t;
+    /**
+     * Writes the fields of t to slot i of the page data, in the layout
+     * Field.serialize uses: a STRING is its length followed by its
+     * characters, zero-padded to Type.STRING_LEN.
+     */
+    private void write_tuple(int i, Tuple t) {
+        own_data();
+        int off = slot_offset(i);
+        Arrays.fill(data, off, off + td.getSize(), (byte) 0);
+        for (int j = 0; j < td.numFields(); j++) {
+            int p = off + td.getOffset(j);
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                write_int(p, ((IntField) t.getField(j)).getValue());
+            } else {
+                String s = stored_string(t.getField(j));
+                write_int(p, s.length());
+                for (int c = 0; c < s.length(); c++)
+                    data[p + 4 + c] = (byte) s.charAt(c);
+            }
+        }
+    }
+
+    /**
+     * Copies the page data, if the page still shares it with its creator or
+     * its before-image. Called before each write to data.
+     */
+    void own_data() {
+        synchronized (oldDataLock) {
+            if (data_shared) {
+                data = data.clone();
+                data_shared = false;
+            }
+        }
     }
 
     /**
@@ -167,64 +313,23 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        byte[] page = new byte[BufferPool.getPageSize()];
+        writeTo(ByteBuffer.wrap(page));
+        return page;
+    }
 
-        return baos.toByteArray();
+    /**
+     * Puts the bytes {@link #getPageData()} returns into buf, at its
+     * position, without making them first; HeapFile writes pages to disk
+     * this way, from a buffer it reuses.
+     *
+     * @throws java.nio.BufferOverflowException if buf has less than a page
+     *         remaining
+     */
+    public void writeTo(ByteBuffer buf) {
+        // empty slots and padding are zero in data; only the header is apart
+        buf.put(header);
+        buf.put(data, header.length, BufferPool.getPageSize() - header.length);
     }
 
     /**
@@ -261,6 +366,10 @@ public class HeapPage implements Page {
     	}
     	this.tuples[tuple_no] = null;
     	this.markSlotUsed(tuple_no, false);  
+    	// empty slots are all zero
+    	this.own_data();
+    	int off = this.slot_offset(tuple_no);
+    	Arrays.fill(this.data, off, off + this.td.getSize(), (byte) 0);
     	//System.out.print(" deleted ");
     }
 
@@ -281,10 +390,11 @@ public class HeapPage implements Page {
     		throw new DbException("No empty slots");
     	}
     	boolean empty_spot = false;
-    	for (int i = 0; i < this.getNumTuples(); i++) {
+    	for (int i = 0; i < this.numSlots; i++) {
     		if (!this.isSlotUsed(i)) {
     			RecordId new_rid = new RecordId(this.pid, i);
     			t.setRecordId(new_rid);
+    			this.write_tuple(i, t);
     			this.tuples[i] = t;
     			this.markSlotUsed(i, true);
     			empty_spot = true;
@@ -299,6 +409,13 @@ public class HeapPage implements Page {
     	
     }
     
+    /**
+     * @return true if t would fit on this page
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     public boolean get_dirty() {
     	if (this.dirt_tid != null)
     		return true;
@@ -335,7 +452,7 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         // some code goes here
     	int empty_slot_count = 0;
-    	for (int i =0; i< this.getNumTuples(); i++) {
+    	for (int i =0; i< this.numSlots; i++) {
     		if (!this.isSlotUsed(i)) {
     			empty_slot_count +=1;
     		}
@@ -395,14 +512,14 @@ public class HeapPage implements Page {
      * Returns number of non-empty tuples for a heap page
      */
     public int getNonEmptyTuples() {
-    	return this.getNumTuples() - this.getNumEmptySlots();
+    	return this.numSlots - this.getNumEmptySlots();
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public HPIterator iterator() {
         // some code goes here
         return new HPIterator(this);
     }
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins each tuple of its left child with
+ * the matching tuples of a B+ tree table, found by a descent of the tree
+ * rather than by a scan of the whole table.
+ * <p>
+ * The right child is a plan over a {@link BTreeScan} of the indexed table,
+ * possibly under Filters. For every left tuple, the scan is pointed at the
+ * key range the join predicate selects and the right child is rewound, so
+ * any filters on the right-hand table are still applied.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator outer;
+    private OpIterator inner;
+    private final BTreeScan probe;
+    private TupleDesc comboTD;
+    transient private Tuple current_left = null;
+    transient private boolean inner_open = false;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its second field
+     *            must be the key of the B+ tree scanned by probe
+     * @param outer
+     *            Iterator for the left(outer) relation to join
+     * @param inner
+     *            Iterator for the right(inner) relation to join, reading its
+     *            tuples from probe
+     * @param probe
+     *            The scan at the bottom of inner
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator outer, OpIterator inner, BTreeScan probe) {
+        if (indexOp(p.getOperator()) == null)
+            throw new IllegalArgumentException("operator " + p.getOperator() + " cannot use an index");
+        this.pred = p;
+        this.outer = outer;
+        this.inner = inner;
+        this.probe = probe;
+        this.comboTD = TupleDesc.merge(outer.getTupleDesc(), inner.getTupleDesc());
+    }
+
+    /**
+     * Returns the operator an index lookup on the right-hand field uses for
+     * a join predicate (left op right is right op' left), or null if the
+     * index cannot answer it.
+     */
+    public static Predicate.Op indexOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return this.outer.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.inner.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        outer.open();
+        current_left = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (inner_open) {
+            inner.close();
+            inner_open = false;
+        }
+        outer.close();
+        current_left = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        current_left = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a left tuple and a right tuple that
+     * satisfy the join predicate.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (current_left != null) {
+                while (inner.hasNext()) {
+                    Tuple t2 = inner.next();
+                    if (pred.filter(current_left, t2))
+                        return merge(current_left, t2);
+                }
+            }
+            if (!outer.hasNext())
+                return null;
+            current_left = outer.next();
+            probe.setIndexPredicate(new IndexPredicate(indexOp(pred.getOperator()),
+                    current_left.getField(pred.getField1())));
+            if (inner_open) {
+                inner.rewind();
+            } else {
+                inner.open();
+                inner_open = true;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.outer, this.inner };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.outer = children[0];
+        this.inner = children[1];
+    }
+
+}
@@ -192,7 +192,19 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+    	// selectivity of "= v" for a v drawn from the values added: a bucket
+    	// holding h values spread over at most min(range, h) distinct ones
+    	// matches each of them h / distinct times
+    	if (this.total_tups == 0)
+    		return 1.0;
+    	double sel = 0;
+    	for (int h : this.bucket_storage) {
+    		if (h == 0)
+    			continue;
+    		double distinct = Math.min(this.range, h);
+    		sel += ((double) h / this.total_tups) * (h / distinct / this.total_tups);
+    	}
+        return sel;
     }
     
     /**
@@ -1,24 +1,64 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.NoSuchElementException;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Each group gets a dense group number, and the aggregate state of every
+ * group lives in primitive arrays indexed by it, so merging a tuple costs one
+ * lookup of its group and no allocation. INT group-by values are looked up
+ * in an open-addressing table of ints; other group-by types in a HashMap.
+ * <p>
+ * Once more groups than the memory budget given to the constructor have been
+ * seen, tuples of groups not already in memory are written, hashed into
+ * FANOUT partitions, to temporary files; the iterator aggregates each
+ * partition in turn, the same way, when it gets to it.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
+    /** Default number of groups held in memory. */
+    public final static int MAX_GROUPS = 100000;
+    /** Number of partitions groups that do not fit are hashed into. */
+    public final static int FANOUT = 16;
+    /** Partitioning depth after which groups are kept in memory regardless. */
+    private final static int MAX_LEVEL = 4;
+    private final static int INITIAL_GROUPS = 16;
+
     private int grp_by_field_num;
     private Type grp_by_field_type;
     private int agg_field_num;
     private Op operation;
-    private HashMap<Field,Integer> aggregated;
-    private HashMap<Field, Integer> counts_for_agg;
+    private final int max_groups;
+    private final int level;
+
+    /** number of groups, and their group-by values by group number */
+    private int groups;
+    private int[] int_keys;
+    private Field[] field_keys;
+    /** SUM, MIN or MAX of each group (the sum for AVG), and its tuple count */
+    private long[] values;
+    private long[] counts;
+    /**
+     * Open-addressing table from INT group-by values to group number + 1
+     * (0 marks a free bucket), with linear probing.
+     */
+    private int[] table_keys;
+    private int[] table_groups;
+    private HashMap<Field, Integer> field_groups;
+
+    /** files of the tuples of groups that did not fit, by partition */
+    private transient SpillFile[] spilling;
+    private transient ArrayList<ArrayList<SpillFile>> spilled;
+
     /**
      * Aggregate constructor
-     * 
+     *
      * @param gbfield
      *            the 0-based index of the group-by field in the tuple, or
      *            NO_GROUPING if there is no grouping
@@ -32,98 +72,258 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, MAX_GROUPS);
+    }
+
+    /**
+     * Aggregate constructor with a memory budget
+     *
+     * @param maxGroups
+     *            the number of groups the aggregator may hold in memory before
+     *            it writes the tuples of further groups to disk
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int maxGroups) {
+        this(gbfield, gbfieldtype, afield, what, maxGroups, 0);
+    }
+
+    private IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int maxGroups, int level) {
         // some code goes here
+    	if (what == null) {
+    		throw new NoSuchElementException("Operator is null");
+    	}
+    	if (what == Op.SUM_COUNT || what == Op.SC_AVG) {
+    		throw new IllegalArgumentException("unsupported aggregate " + what);
+    	}
     	this.grp_by_field_num = gbfield;
     	this.grp_by_field_type = gbfieldtype;
     	this.agg_field_num = afield;
     	this.operation = what;
-    	this.aggregated = new HashMap<Field, Integer>();
-    	this.counts_for_agg = new HashMap<Field, Integer>();
+    	this.max_groups = Math.max(maxGroups, 1);
+    	this.level = level;
+    	this.clear();
     }
 
     /**
-     * Merge a new tuple into the aggregate, grouping as indicated in the
-     * constructor
-     * 
-     * @param tup
-     *            the Tuple containing an aggregate field and a group-by field
+     * Discards every group, and the files of groups that did not fit in
+     * memory.
      */
-    
-    private Integer initialize_value() throws NoSuchElementException {
-    	if (this.operation == null) {
-    		throw new NoSuchElementException("Operator is null");
+    public void clear() {
+    	this.groups = 0;
+    	this.values = new long[INITIAL_GROUPS];
+    	this.counts = new long[INITIAL_GROUPS];
+    	this.int_keys = null;
+    	this.field_keys = null;
+    	this.table_keys = null;
+    	this.table_groups = null;
+    	this.field_groups = null;
+    	if (this.grp_by_field_num == Aggregator.NO_GROUPING) {
+    		//nothing to look up: group 0 is the only group
+    	}
+    	else if (this.grp_by_field_type == Type.INT_TYPE) {
+    		this.int_keys = new int[INITIAL_GROUPS];
+    		this.table_keys = new int[2 * INITIAL_GROUPS];
+    		this.table_groups = new int[2 * INITIAL_GROUPS];
+    	}
+    	else {
+    		this.field_keys = new Field[INITIAL_GROUPS];
+    		this.field_groups = new HashMap<Field, Integer>();
     	}
-    	if (this.operation == Op.AVG || this.operation == Op.SUM || this.operation == Op.COUNT) {
+    	if (this.spilled != null) {
+    		for (int p = 0; p < FANOUT; p++) {
+    			if (this.spilling[p] != null)
+    				this.spilling[p].delete();
+    			for (SpillFile f : this.spilled.get(p))
+    				f.delete();
+    		}
+    	}
+    	this.spilling = null;
+    	this.spilled = null;
+    }
+
+    private static int mix(int h, int level) {
+    	h += level * 0x9E3779B9;
+    	h *= 0x85EBCA6B;
+    	return h ^ (h >>> 16);
+    }
+
+    /** @return the bucket holding key, or the free bucket it would go in */
+    private int bucket(int key) {
+    	int mask = this.table_keys.length - 1;
+    	int b = mix(key, this.level) & mask;
+    	while (this.table_groups[b] != 0 && this.table_keys[b] != key)
+    		b = (b + 1) & mask;
+    	return b;
+    }
+
+    /**
+     * @return the group number of the group-by value of tup, or -1 if it is
+     *         not in memory and there is no room for it
+     */
+    private int group_of(Tuple tup) {
+    	if (this.grp_by_field_num == Aggregator.NO_GROUPING) {
+    		if (this.groups == 0)
+    			this.new_group();
     		return 0;
     	}
-    	else if (this.operation == Op.MAX) {
-    		return Integer.MIN_VALUE;
+    	Field f = tup.getField(this.grp_by_field_num);
+    	if (this.table_keys != null)
+    		return this.int_group(((IntField) f).getValue());
+    	Integer found = this.field_groups.get(f);
+    	if (found != null)
+    		return found;
+    	if (!this.has_room())
+    		return -1;
+    	int g = this.new_group();
+    	this.field_keys[g] = f;
+    	this.field_groups.put(f, g);
+    	return g;
+    }
+
+    /** group_of for an INT group-by value */
+    private int int_group(int key) {
+    	int b = this.bucket(key);
+    	if (this.table_groups[b] != 0)
+    		return this.table_groups[b] - 1;
+    	if (!this.has_room())
+    		return -1;
+    	int g = this.new_group();
+    	this.int_keys[g] = key;
+    	this.table_keys[b] = key;
+    	this.table_groups[b] = g + 1;
+    	//keep the table at most half full
+    	if (2 * this.groups > this.table_keys.length)
+    		this.rehash();
+    	return g;
+    }
+
+    private boolean has_room() {
+    	return this.groups < this.max_groups || this.level >= MAX_LEVEL;
+    }
+
+    /** Allocates the next group number, with the operator's initial value. */
+    private int new_group() {
+    	int g = this.groups++;
+    	if (g == this.values.length) {
+    		int n = 2 * g;
+    		this.values = Arrays.copyOf(this.values, n);
+    		this.counts = Arrays.copyOf(this.counts, n);
+    		if (this.int_keys != null)
+    			this.int_keys = Arrays.copyOf(this.int_keys, n);
+    		if (this.field_keys != null)
+    			this.field_keys = Arrays.copyOf(this.field_keys, n);
     	}
-    	else if (this.operation == Op.MIN) {
-    		return Integer.MAX_VALUE;
+    	if (this.operation == Op.MAX)
+    		this.values[g] = Integer.MIN_VALUE;
+    	else if (this.operation == Op.MIN)
+    		this.values[g] = Integer.MAX_VALUE;
+    	else
+    		this.values[g] = 0;
+    	this.counts[g] = 0;
+    	return g;
+    }
+
+    private void rehash() {
+    	int n = 2 * this.table_keys.length;
+    	this.table_keys = new int[n];
+    	this.table_groups = new int[n];
+    	for (int g = 0; g < this.groups; g++) {
+    		int b = this.bucket(this.int_keys[g]);
+    		this.table_keys[b] = this.int_keys[g];
+    		this.table_groups[b] = g + 1;
     	}
-    	return null; //should never reach this case
     }
-    
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing an aggregate field and a group-by field
+     */
     public void mergeTupleIntoGroup(Tuple tup) throws NoSuchElementException {
         // some code goes here
-    	//check if group by fields match --> if yes then merge the agg field based on op
-    	if (this.aggregated != null) {
-    		Field tupfield = (this.grp_by_field_num == Aggregator.NO_GROUPING) ? null : tup.getField(this.grp_by_field_num);
-    		if (!this.aggregated.containsKey(tupfield)) {
-    			//initialize to base value to check if a field is null before adding it
-    			this.aggregated.put(tupfield, initialize_value()); 
-    			this.counts_for_agg.put(tupfield, 0);
-    		}
-    		Integer new_agg_value = ((IntField) tup.getField(this.agg_field_num)).getValue(); //assuming agg_field number is valid... 
-    		try {
-				this.apply_operator(new_agg_value, tupfield);
-			} catch (DbException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} //assuming the value in the agg_field is valid/not null....		
-    	}
-    }
-    
-    private void apply_operator(Integer current_agg, Field current_f) throws NoSuchElementException, DbException {
-    	
-    	//System.out.print(current_agg.toString()+current_f.toString());
-    	if (this.operation == Op.MAX) {
-    		Integer agg = this.aggregated.get(current_f);
-    		if (current_agg > agg) {
-    			this.aggregated.put(current_f, current_agg);
-    		} 
-    	}
-    	else if (this.operation == Op.MIN) {
-    		Integer agg = this.aggregated.get(current_f);
-    		if (current_agg < agg) {
-    			this.aggregated.put(current_f, current_agg);
-    		}
+    	int g = this.group_of(tup);
+    	if (g < 0) {
+    		this.spill(tup);
+    		return;
     	}
-    	else if (this.operation == Op.COUNT) {
-    		Integer current_count = this.counts_for_agg.get(current_f);
-    		this.counts_for_agg.put(current_f, current_count+1); //duplicate data essentially... 
-    		this.aggregated.put(current_f, current_count+1);
+    	int value = ((IntField) tup.getField(this.agg_field_num)).getValue(); //assuming agg_field number is valid...
+    	this.merge_value(g, value);
+    }
+
+    /**
+     * Merges the selected rows of a batch into the aggregate, as
+     * mergeTupleIntoGroup would one tuple at a time. INT group-by and
+     * aggregate values are read straight from the batch's int columns.
+     */
+    public void mergeBatch(TupleBatch batch) {
+    	boolean int_groups = this.grp_by_field_num == Aggregator.NO_GROUPING || this.table_keys != null;
+    	if (!int_groups || !batch.isIntColumn(this.agg_field_num)) {
+    		for (int i = 0; i < batch.size(); i++)
+    			this.mergeTupleIntoGroup(batch.getTuple(i));
+    		return;
     	}
-    	else if (this.operation == Op.SUM) {
-    		//System.out.print(" "+current_agg.toString()+"current agg ");
-    		Integer current_sum = this.aggregated.get(current_f);
-    		Integer current_count = this.counts_for_agg.get(current_f);
-    		this.counts_for_agg.put(current_f, current_count+1);
-    		Integer new_sum = current_sum+current_agg;
-    		this.aggregated.put(current_f, new_sum);
-    		//System.out.print("field "+current_f.toString());
-    		//System.out.print("sum: "+new_sum.toString());
+    	int[] keys = this.grp_by_field_num == Aggregator.NO_GROUPING ? null : batch.intColumn(this.grp_by_field_num);
+    	int[] agg_values = batch.intColumn(this.agg_field_num);
+    	if (keys == null && this.groups == 0 && batch.size() > 0)
+    		this.new_group();
+    	for (int i = 0; i < batch.size(); i++) {
+    		int r = batch.row(i);
+    		int g = keys == null ? 0 : this.int_group(keys[r]);
+    		if (g < 0)
+    			this.spill(batch.getTuple(i));
+    		else
+    			this.merge_value(g, agg_values[r]);
     	}
-    	else if (this.operation == Op.AVG) {
-    		Integer current_count = this.counts_for_agg.get(current_f);
-    		Integer current_sum = this.aggregated.get(current_f);
-    		current_sum = current_sum + current_agg;
-    		this.counts_for_agg.put(current_f, current_count+1);
-    		//Integer new_avg = current_sum/(current_count + 1);
-    		this.aggregated.put(current_f, current_sum);
+    }
+
+    private void merge_value(int g, int value) {
+    	this.counts[g]++;
+    	switch (this.operation) {
+    	case MAX:
+    		if (value > this.values[g])
+    			this.values[g] = value;
+    		break;
+    	case MIN:
+    		if (value < this.values[g])
+    			this.values[g] = value;
+    		break;
+    	case SUM:
+    	case AVG:
+    		this.values[g] += value;
+    		break;
+    	default:
+    		//COUNT only needs counts
+    		break;
     	}
+    }
 
+    /** Writes the group-by and aggregate values of tup to its partition's file. */
+    private void spill(Tuple tup) {
+    	Field f = tup.getField(this.grp_by_field_num);
+    	int h = f.getType() == Type.INT_TYPE ? ((IntField) f).getValue() : f.hashCode();
+    	//partition by the high bits: the table one level down probes with the low ones
+    	int p = (int) (((mix(h, this.level + 1) & 0xffffffffL) * FANOUT) >>> 32);
+    	try {
+    		if (this.spilled == null) {
+    			this.spilling = new SpillFile[FANOUT];
+    			this.spilled = new ArrayList<ArrayList<SpillFile>>();
+    			for (int i = 0; i < FANOUT; i++)
+    				this.spilled.add(new ArrayList<SpillFile>());
+    		}
+    		if (this.spilling[p] == null)
+    			this.spilling[p] = new SpillFile(this.spill_tupdesc());
+    		Tuple t = new Tuple(this.spill_tupdesc());
+    		t.setField(0, f);
+    		t.setField(1, tup.getField(this.agg_field_num));
+    		this.spilling[p].add(t);
+    	} catch (IOException e) {
+    		throw new RuntimeException("aggregate could not write spill file", e);
+    	}
+    }
+
+    private TupleDesc spill_tupdesc() {
+    	return new TupleDesc(new Type[] {this.grp_by_field_type, Type.INT_TYPE});
     }
 
     private TupleDesc gen_tupdesc() {
@@ -139,10 +339,18 @@ public class IntegerAggregator implements Aggregator {
     	}
     	return new TupleDesc(type_ar, field_ar);
     }
-    
+
+    private int result(int g) {
+    	if (this.operation == Op.AVG)
+    		return (int) (this.values[g] / this.counts[g]);
+    	if (this.operation == Op.COUNT)
+    		return (int) this.counts[g];
+    	return (int) this.values[g];
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
-     * 
+     *
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
@@ -152,25 +360,122 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         ArrayList<Tuple> agg_tups = new ArrayList<Tuple>();
         TupleDesc td = this.gen_tupdesc();
-        for (Field f : this.aggregated.keySet()) {
+        for (int g = 0; g < this.groups; g++) {
         	Tuple new_tup = new Tuple(td);
-        	Integer val;
-        	if (this.operation == Op.AVG){
-        		val = this.aggregated.get(f)/this.counts_for_agg.get(f);
-        		//System.out.print(val.toString()+"AVGERAGE HERE");
-        	}
-        	else {
-        		val = this.aggregated.get(f);
-        	}
         	if (this.grp_by_field_num == Aggregator.NO_GROUPING) {
-        		new_tup.setField(0, new IntField(val));
+        		new_tup.setField(0, new IntField(this.result(g)));
         	} else {
-        		new_tup.setField(0, f);
-        		new_tup.setField(1, new IntField(val));	
+        		new_tup.setField(0, this.int_keys != null ? new IntField(this.int_keys[g]) : this.field_keys[g]);
+        		new_tup.setField(1, new IntField(this.result(g)));
+        	}
+        	agg_tups.add(new_tup);
+        }
+        if (this.spilled == null)
+        	return new TupleIterator(td, agg_tups);
+        //later merges go to new files, so these can be read
+        ArrayList<ArrayList<OpIterator>> parts = new ArrayList<ArrayList<OpIterator>>();
+        try {
+        	for (int p = 0; p < FANOUT; p++) {
+        		if (this.spilling[p] != null) {
+        			this.spilled.get(p).add(this.spilling[p]);
+        			this.spilling[p] = null;
+        		}
+        		ArrayList<OpIterator> files = new ArrayList<OpIterator>();
+        		for (SpillFile f : this.spilled.get(p))
+        			files.add(f.iterator());
+        		parts.add(files);
         	}
-        	agg_tups.add(new_tup);   	
+        } catch (IOException e) {
+        	throw new RuntimeException("aggregate could not write spill file", e);
+        }
+        return new SpilledIterator(td, agg_tups, parts);
+    }
+
+    /**
+     * Iterates over the groups held in memory, then over the groups of each
+     * spilled partition, aggregating a partition when it gets to it.
+     */
+    private class SpilledIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private final TupleIterator resident;
+        private final ArrayList<ArrayList<OpIterator>> parts;
+        private transient int part;
+        private transient IntegerAggregator sub;
+        private transient OpIterator current;
+
+        SpilledIterator(TupleDesc td, ArrayList<Tuple> resident, ArrayList<ArrayList<OpIterator>> parts) {
+            this.td = td;
+            this.resident = new TupleIterator(td, resident);
+            this.parts = parts;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            this.resident.open();
+            this.current = this.resident;
+            this.part = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (this.current == null)
+                return false;
+            while (!this.current.hasNext()) {
+                this.end_part();
+                if (this.part == parts.size()) {
+                    this.current = null;
+                    return false;
+                }
+                this.current = this.aggregate(this.parts.get(this.part++));
+            }
+            return true;
+        }
+
+        /** Aggregates the tuples of one partition, one level further down. */
+        private OpIterator aggregate(ArrayList<OpIterator> files)
+                throws DbException, TransactionAbortedException {
+            this.sub = new IntegerAggregator(0, grp_by_field_type, 1, operation, max_groups, level + 1);
+            for (OpIterator f : files) {
+                f.open();
+                while (f.hasNext())
+                    this.sub.mergeTupleIntoGroup(f.next());
+                f.close();
+            }
+            OpIterator it = this.sub.iterator();
+            it.open();
+            return it;
+        }
+
+        private void end_part() {
+            if (this.current != this.resident)
+                this.current.close();
+            if (this.sub != null) {
+                this.sub.clear();
+                this.sub = null;
+            }
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            return this.current.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            this.close();
+            this.open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return this.td;
+        }
+
+        public void close() {
+            if (this.current != null)
+                this.end_part();
+            this.resident.close();
+            this.current = null;
         }
-        return new TupleIterator(td, agg_tups);            
     }
 
 }
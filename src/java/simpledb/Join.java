@@ -3,15 +3,31 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, as a block
+ * nested-loop join: it reads the left child a block of tuples at a time and
+ * scans the right child once per block, rather than once per left tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** Default size of a block of left tuples, in pages. */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     private JoinPredicate pred;
     private OpIterator kid1;
     private OpIterator kid2;
-    private Tuple current_left;
+    private final int block_pages;
+    /**
+     * The current block of left tuples and, if the left join field is an
+     * int, their join fields unboxed so the inner loop compares ints.
+     */
+    private transient Tuple[] block;
+    private transient int[] block_keys;
+    private transient int block_len;
+    private transient boolean first_block;
+    /** the right tuple being matched against the block, and the next block slot */
+    private transient Tuple current_right;
+    private transient int block_pos;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -25,11 +41,39 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor with a block size.
+     * 
+     * @param blockPages
+     *            The number of pages' worth of left tuples to hold per scan of
+     *            the right child; 0 joins one left tuple at a time
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         // some code goes here
     	this.kid1 = child1;
     	this.kid2 = child2;
     	this.pred = p;
-    	this.current_left = null;
+    	this.block_pages = Math.max(blockPages, 0);
+    }
+
+    /**
+     * @return the block size in pages; 0 if the join reads one left tuple
+     *         per scan of the right child
+     */
+    public int getBlockPages() {
+    	return this.block_pages;
+    }
+
+    /**
+     * Returns the number of tuples of td that fit in a block of blockPages
+     * heap pages (at least 1).
+     */
+    public static int blockTuples(TupleDesc td, int blockPages) {
+    	int per_page = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    	return Math.max(1, blockPages * per_page);
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -77,6 +121,12 @@ public class Join extends Operator {
     		super.open();
     		this.kid1.open();
     		this.kid2.open();
+    		int n = blockTuples(this.kid1.getTupleDesc(), this.block_pages);
+    		this.block = new Tuple[n];
+    		this.block_keys = this.kid1.getTupleDesc().getFieldType(this.pred.getField1()) == Type.INT_TYPE
+    				&& this.kid2.getTupleDesc().getFieldType(this.pred.getField2()) == Type.INT_TYPE
+    				? new int[n] : null;
+    		this.reset_block();
     	}
     	else {
     		throw new NoSuchElementException("no kid iterator");
@@ -88,20 +138,71 @@ public class Join extends Operator {
     	super.close();
     	this.kid1.close();
     	this.kid2.close();
+    	this.block = null;
+    	this.block_keys = null;
+    	this.current_right = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
     	this.kid1.rewind();
     	this.kid2.rewind();
-    	this.current_left = null;
+    	this.reset_block();
+    }
+
+    private void reset_block() {
+    	this.block_len = 0;
+    	this.first_block = true;
+    	this.current_right = null;
+    	this.block_pos = 0;
+    }
+
+    /**
+     * Fills the block with the next left tuples.
+     * @return false if the left child is exhausted
+     */
+    private boolean load_block() throws TransactionAbortedException, DbException {
+    	Arrays.fill(this.block, 0, this.block_len, null);
+    	this.block_len = 0;
+    	while (this.block_len < this.block.length && this.kid1.hasNext()) {
+    		Tuple t = this.kid1.next();
+    		if (this.block_keys != null)
+    			this.block_keys[this.block_len] = ((IntField) t.getField(this.pred.getField1())).getValue();
+    		this.block[this.block_len++] = t;
+    	}
+    	return this.block_len > 0;
+    }
+
+    private boolean matches(int i, Tuple t2, int key2) {
+    	if (this.block_keys == null)
+    		return this.pred.filter(this.block[i], t2);
+    	int key1 = this.block_keys[i];
+    	switch (this.pred.getOperator()) {
+    	case EQUALS:
+    		return key1 == key2;
+    	case NOT_EQUALS:
+    		return key1 != key2;
+    	case GREATER_THAN:
+    		return key1 > key2;
+    	case GREATER_THAN_OR_EQ:
+    		return key1 >= key2;
+    	case LESS_THAN:
+    		return key1 < key2;
+    	case LESS_THAN_OR_EQ:
+    		return key1 <= key2;
+    	default:
+    		return this.pred.filter(this.block[i], t2);
+    	}
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
      * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * the simplest is a nested loops join. This one is a block nested loops
+     * join: each right tuple is compared with a whole block of left tuples,
+     * so the right child is scanned once per block. Tuples come out grouped
+     * by block, then in right child order.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -117,41 +218,39 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-
-    	
-    	while ((this.current_left != null)||this.kid1.hasNext()) {
-    		Tuple t1;
-    		if (this.current_left != null) {
-    			t1 = this.current_left;
-    		}
-    		else {
-    			t1 = this.kid1.next();
-    			this.current_left = t1;
-    		}
-    		//System.out.print("current t1:"+t1.toString());
-    		while (this.kid2.hasNext()) {
-    			Tuple t2 = this.kid2.next();
-    			//System.out.print(" current t2:"+t2.toString());
-    			//System.out.print(" pred "+this.pred.getOperator().toString()+" field "+this.pred.getField1()+" "+this.pred.getField2());
-    			if (this.pred.filter(t1, t2)) {
-    				//project if pred is =, then project?
-    				Tuple joined = new Tuple(this.getTupleDesc());
-    				for (int i = 0; i<t1.getTupleDesc().numFields(); i++) {
-    					Field f = t1.getField(i);
-    					joined.setField(i, f);
-    				}
-    				for (int j = 0; j<t2.getTupleDesc().numFields(); j++) {
-    					Field f = t2.getField(j);
-    					joined.setField(j+t1.getTupleDesc().numFields(), f);
-    				}
-    				//System.out.print(" Joined "+joined.toString());
-    				return joined;
+    	while (true) {
+    		if (this.current_right != null) {
+    			Tuple t2 = this.current_right;
+    			int key2 = this.block_keys != null ? ((IntField) t2.getField(this.pred.getField2())).getValue() : 0;
+    			while (this.block_pos < this.block_len) {
+    				int i = this.block_pos++;
+    				if (this.matches(i, t2, key2))
+    					return this.merge(this.block[i], t2);
     			}
+    			this.current_right = null;
+    		}
+    		if (this.block_len > 0 && this.kid2.hasNext()) {
+    			this.current_right = this.kid2.next();
+    			this.block_pos = 0;
+    			continue;
     		}
-    		this.current_left = null;
-    		this.kid2.rewind();
+    		//the right child is done with this block: move to the next one
+    		if (!this.load_block())
+    			return null;
+    		if (!this.first_block)
+    			this.kid2.rewind();
+    		this.first_block = false;
     	}
-        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+    	Tuple joined = new Tuple(this.getTupleDesc());
+    	int n1 = t1.getTupleDesc().numFields();
+    	for (int i = 0; i < n1; i++)
+    		joined.setField(i, t1.getField(i));
+    	for (int j = 0; j < t2.getTupleDesc().numFields(); j++)
+    		joined.setField(j + n1, t2.getField(j));
+    	return joined;
     }
 
     @Override
@@ -14,6 +14,30 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** The physical join operators the optimizer chooses between. */
+    public enum JoinAlgorithm {
+        /** {@link Join}: rescans the right child for every left tuple */
+        NESTED_LOOP,
+        /**
+         * {@link Join} with blocks of {@link Join#DEFAULT_BLOCK_PAGES}: rescans
+         * the right child for every block of left tuples
+         */
+        BLOCK_NESTED_LOOP,
+        /** {@link HashEquiJoin}: equality predicates only */
+        HASH,
+        /**
+         * {@link IndexNestedLoopJoin}: the right child is a B+ tree table
+         * keyed on the join field
+         */
+        INDEX_NESTED_LOOP
+    }
+
+    /**
+     * CPU cost of adding a tuple to a hash join's table, relative to one
+     * predicate application (or hash probe)
+     */
+    private static final double HASH_BUILD_COST = 2.0;
+
     /**
      * Constructor
      * 
@@ -68,12 +92,61 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinAlgorithm a = lj.algorithm;
+        if (a == null)
+            a = lj.p == Predicate.Op.EQUALS ? JoinAlgorithm.HASH : JoinAlgorithm.BLOCK_NESTED_LOOP;
+        if (a == JoinAlgorithm.INDEX_NESTED_LOOP) {
+            j = instantiateIndexJoin(p, plan1, plan2);
+            if (j != null)
+                return j;
+            // the right child is not a plain scan of the index after all
+            a = lj.p == Predicate.Op.EQUALS ? JoinAlgorithm.HASH : JoinAlgorithm.BLOCK_NESTED_LOOP;
+        }
+
+        if (a == JoinAlgorithm.HASH)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else if (a == JoinAlgorithm.BLOCK_NESTED_LOOP)
+            j = new Join(p, plan1, plan2, Join.DEFAULT_BLOCK_PAGES);
+        else
+            j = new Join(p, plan1, plan2, 0);
 
         return j;
 
     }
 
+    /**
+     * Builds an IndexNestedLoopJoin if plan2 is a sequential scan (possibly
+     * under filters) of a B+ tree table keyed on the join field; the scan is
+     * replaced by a BTreeScan the join can point at each key.
+     * 
+     * @return the join, or null if plan2 cannot be probed through an index
+     */
+    private static OpIterator instantiateIndexJoin(JoinPredicate p,
+            OpIterator plan1, OpIterator plan2) {
+        if (IndexNestedLoopJoin.indexOp(p.getOperator()) == null)
+            return null;
+        Filter parent = null;
+        OpIterator leaf = plan2;
+        while (leaf instanceof Filter) {
+            parent = (Filter) leaf;
+            leaf = parent.getChildren()[0];
+        }
+        if (!(leaf instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) leaf;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyField() != p.getField2())
+            return null;
+
+        BTreeScan probe = new BTreeScan(scan.getTransactionId(), scan.getTableId(),
+                scan.getAlias(), null);
+        if (parent == null)
+            plan2 = probe;
+        else
+            parent.setChildren(new OpIterator[] { probe });
+        return new IndexNestedLoopJoin(p, plan1, plan2, probe);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,18 +175,116 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, chooseJoinAlgorithm(j, card1, card2, cost1,
+                cost2, null), card1, card2, cost1, cost2, null);
+    }
+
+    /**
+     * Estimate the cost of a join with a given algorithm, in the same units
+     * as {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}:
+     * <ul>
+     * <li>nested loops scan the right side once per left tuple and apply the
+     * predicate to every pair;</li>
+     * <li>block nested loops (considered for predicates other than equality,
+     * which hash joins serve better) scan the right side once per block of
+     * left tuples;</li>
+     * <li>a hash join scans each side once, and pays HASH_BUILD_COST per left
+     * tuple and 1 per right tuple. If the left side has more than
+     * {@link HashEquiJoin#MAP_SIZE} tuples, the part that does not fit is
+     * written to and read back from disk, on both sides;</li>
+     * <li>an index nested-loop join scans the left side once, and for each
+     * left tuple descends the right table's B+ tree and reads the leaves
+     * holding the matching tuples.</li>
+     * </ul>
+     * 
+     * @param a
+     *            The join algorithm
+     * @param innerStats
+     *            Statistics of the right-hand table, if it is a base table
+     *            (needed for INDEX_NESTED_LOOP), or null
+     * @return The estimated cost, or infinity if the algorithm cannot run
+     *         this join
+     */
+    public double estimateJoinCost(LogicalJoinNode j, JoinAlgorithm a,
+            int card1, int card2, double cost1, double cost2,
+            TableStats innerStats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-        	double cost = cost1 +cost2*card1 + card1*card2;
-            return cost;
         }
+        switch (a) {
+        case HASH:
+            if (j.p != Predicate.Op.EQUALS)
+                return Double.POSITIVE_INFINITY;
+            double spilled = card1 > HashEquiJoin.MAP_SIZE
+                    ? 1.0 - (double) HashEquiJoin.MAP_SIZE / card1 : 0.0;
+            return (cost1 + cost2) * (1.0 + 2.0 * spilled) + HASH_BUILD_COST
+                    * card1 + card2;
+        case INDEX_NESTED_LOOP:
+            if (innerStats == null || !indexJoinApplies(j))
+                return Double.POSITIVE_INFINITY;
+            int field = Database.getCatalog().getTupleDesc(this.p.getTableId(j.t2Alias))
+                    .fieldNameToIndex(j.f2PureName);
+            double sel = innerStats.avgSelectivity(field, j.p);
+            return cost1 + card1 * innerStats.estimateIndexScanCost(sel)
+                    + (double) card1 * card2 * sel;
+        case BLOCK_NESTED_LOOP:
+            if (j.p == Predicate.Op.EQUALS)
+                return Double.POSITIVE_INFINITY;
+            double blocks = Math.ceil((double) card1 / leftBlockTuples(j));
+            return cost1 + cost2 * blocks + (double) card1 * card2;
+        default:
+            return cost1 + cost2 * card1 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * Returns the cheapest algorithm for a join, according to
+     * {@link #estimateJoinCost(LogicalJoinNode, JoinAlgorithm, int, int, double, double, TableStats)}.
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, TableStats innerStats) {
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            double c = estimateJoinCost(j, a, card1, card2, cost1, cost2, innerStats);
+            if (c < bestCost) {
+                best = a;
+                bestCost = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimates how many left tuples of j a block nested-loop join holds per
+     * block, from the width of the left-hand base table (the left side may
+     * be a wider join result, so this errs towards more blocks).
+     */
+    private int leftBlockTuples(LogicalJoinNode j) {
+        Integer tableId = j.t1Alias == null ? null : this.p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return 1;
+        return Join.blockTuples(Database.getCatalog().getTupleDesc(tableId),
+                Join.DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Return true if the right-hand table of j is a B+ tree keyed on the join
+     * field and the join predicate can be answered by an index lookup.
+     */
+    private boolean indexJoinApplies(LogicalJoinNode j) {
+        if (j.t2Alias == null || IndexNestedLoopJoin.indexOp(j.p) == null)
+            return false;
+        Integer tableId = this.p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            return false;
+        TupleDesc td = file.getTupleDesc();
+        return td.getFieldName(((BTreeFile) file).keyField()).equals(j.f2PureName);
     }
 
     /**
@@ -245,6 +416,8 @@ public class JoinOptimizer {
             throws ParsingException {
         //Not necessary for labs 1-2
     	int num_joins = this.joins.size();
+    	if (num_joins == 0)
+    		return this.joins;
     	PlanCache pc = new PlanCache();
     	Set<Set<LogicalJoinNode>> size_1_subs = enumerateSubsets(this.joins, 1);
     	
@@ -393,14 +566,24 @@ public class JoinOptimizer {
             }
         }
 
+        // an index join needs a base table on the inner side
+        TableStats t1stats = news.isEmpty() || !doesJoin(prevBest, table1Alias)
+                ? stats.get(table1Name) : null;
+        TableStats t2stats = table2Alias != null
+                && (news.isEmpty() || doesJoin(prevBest, table1Alias))
+                ? stats.get(table2Name) : null;
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        JoinAlgorithm alg1 = chooseJoinAlgorithm(j, t1card, t2card, t1cost, t2cost, t2stats);
+        double cost1 = estimateJoinCost(j, alg1, t1card, t2card, t1cost, t2cost, t2stats);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        JoinAlgorithm alg2 = chooseJoinAlgorithm(j2, t2card, t1card, t2cost, t1cost, t1stats);
+        double cost2 = estimateJoinCost(j2, alg2, t2card, t1card, t2cost, t1cost, t1stats);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            alg1 = alg2;
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
@@ -415,6 +598,9 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
+        // j may be shared with other subplans, so the algorithm goes on a copy
+        if (!(j instanceof LogicalSubplanJoinNode))
+            j = j.withAlgorithm(alg1);
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
     }
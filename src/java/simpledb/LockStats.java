@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LockStats counts lock manager activity for one table. PageLocker keeps one
+ * instance per table id and updates it on every lock request; the counters
+ * are striped adders, so recording is cheap enough to leave on all the time
+ * and they can be read at any moment without stopping the lock manager.
+ *
+ * @see PageLocker#get_lock_stats(int)
+ * @see BufferPool#getLockStats(int)
+ */
+public class LockStats {
+
+    /** Number of buckets in the wait time histogram. */
+    public static final int NUM_WAIT_BUCKETS = 32;
+
+    private final int tableid;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder upgrades = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(NUM_WAIT_BUCKETS);
+
+    public LockStats(int tableid) {
+        this.tableid = tableid;
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the number of lock requests granted, with or without waiting */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /** @return the number of lock requests that could not be granted immediately */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /** @return the number of shared locks upgraded to exclusive */
+    public long getUpgrades() {
+        return upgrades.sum();
+    }
+
+    /** @return the number of waits that gave up because the timeout expired */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return the number of waits that ended without the lock because the
+     *   transaction was chosen as a deadlock victim, completed, or its thread
+     *   was interrupted
+     */
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    /** @return the total time spent waiting for locks on this table, in nanoseconds */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    /**
+     * Returns a copy of the wait time histogram. Bucket 0 counts waits
+     * shorter than 2 microseconds; bucket i > 0 counts waits of at least 2^i
+     * and less than 2^(i+1) microseconds. The last bucket also holds every
+     * longer wait.
+     */
+    public long[] getWaitHistogram() {
+        long[] out = new long[NUM_WAIT_BUCKETS];
+        for (int i = 0; i < NUM_WAIT_BUCKETS; i++)
+            out[i] = waitHistogram.get(i);
+        return out;
+    }
+
+    void recordAcquire(boolean upgrade) {
+        acquisitions.increment();
+        if (upgrade)
+            upgrades.increment();
+    }
+
+    void recordWait() {
+        waits.increment();
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    void recordAbort() {
+        aborts.increment();
+    }
+
+    void recordWaitTime(long nanos) {
+        totalWaitNanos.add(nanos);
+        long micros = nanos / 1000;
+        int bucket = micros < 2 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        waitHistogram.incrementAndGet(Math.min(bucket, NUM_WAIT_BUCKETS - 1));
+    }
+
+    public String toString() {
+        return "table " + tableid + ": acquisitions=" + getAcquisitions() + " waits=" + getWaits()
+                + " upgrades=" + getUpgrades() + " timeouts=" + getTimeouts() + " aborts=" + getAborts()
+                + " waitMs=" + getTotalWaitNanos() / 1000000;
+    }
+}
@@ -0,0 +1,238 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogBuffer is the in-memory tail of the log. LogFile serializes each record
+ * and appends it here; the append only copies the bytes into a ring of
+ * direct ByteBuffers under a short lock and assigns the record its LSN (its
+ * offset in the log file). A background writer thread drains filled (or,
+ * when it is otherwise idle, partially filled) buffers to the log's
+ * FileChannel with one positional write per buffer, so under load many
+ * records share a single system call.
+ * <p>
+ * Appends block only if every buffer is waiting to be written. The writer
+ * thread is started on demand and exits after it has been idle for a while,
+ * so a LogFile that is simply dropped does not leak a thread.
+ *
+ * @see LogFile
+ */
+public class LogBuffer {
+
+    /** Default number of buffers in the ring. */
+    public static final int DEFAULT_BUFFERS = 4;
+    /** Default size of each buffer in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    /** How long the writer thread waits for work before exiting (ms). */
+    private static final long WRITER_IDLE_MS = 1000;
+
+    /** A buffer and the log offset of its first byte. */
+    private static class Block {
+        final ByteBuffer buf;
+        long start;
+
+        Block(int size) {
+            this.buf = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private final FileChannel channel;
+    /**
+     * Held for a whole append, so a record that has to wait for a free
+     * buffer halfway through is never interleaved with another one.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ArrayDeque<Block> free;
+    private final ArrayDeque<Block> sealed;
+    private Block current;
+    /** offset the next appended byte gets */
+    private long end;
+    /** every byte before this offset has been handed to the OS */
+    private long written;
+    private boolean writerRunning;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * @param channel the log file; records are written at their LSN
+     * @param start the log offset of the first byte appended
+     */
+    public LogBuffer(FileChannel channel, long start) {
+        this(channel, start, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    public LogBuffer(FileChannel channel, long start, int numBuffers, int bufferSize) {
+        this.channel = channel;
+        this.free = new ArrayDeque<Block>(numBuffers);
+        this.sealed = new ArrayDeque<Block>(numBuffers);
+        for (int i = 0; i < Math.max(numBuffers, 2); i++)
+            free.add(new Block(bufferSize));
+        this.current = null;
+        this.end = start;
+        this.written = start;
+        this.writerRunning = false;
+        this.closed = false;
+        this.failure = null;
+    }
+
+    /**
+     * Appends len bytes of data to the log.
+     *
+     * @return the LSN (log offset) of the first appended byte
+     */
+    public long append(byte[] data, int len) throws IOException {
+        appendLock.lock();
+        try {
+            return appendRecord(data, len);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private synchronized long appendRecord(byte[] data, int len) throws IOException {
+        checkOpen();
+        long lsn = end;
+        int copied = 0;
+        while (copied < len) {
+            if (current == null) {
+                while (free.isEmpty()) {
+                    startWriter();
+                    waitForWriter();
+                    checkOpen();
+                }
+                current = free.poll();
+                current.start = end + copied;
+            }
+            int n = Math.min(len - copied, current.buf.remaining());
+            current.buf.put(data, copied, n);
+            copied += n;
+            if (!current.buf.hasRemaining())
+                seal();
+        }
+        end += len;
+        startWriter();
+        notifyAll();
+        return lsn;
+    }
+
+    /** @return the LSN the next appended record will get */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Blocks until everything appended so far has been written to the
+     * channel (but not necessarily forced to disk).
+     *
+     * @return the offset up to which the log has been written
+     */
+    public synchronized long drain() throws IOException {
+        long target = end;
+        while (written < target) {
+            if (failure != null)
+                throw failure;
+            startWriter();
+            waitForWriter();
+        }
+        return target;
+    }
+
+    /** Drains the buffer and stops the writer thread. */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        drain();
+        closed = true;
+        notifyAll();
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("log buffer is closed");
+    }
+
+    private void seal() {
+        sealed.add(current);
+        current = null;
+    }
+
+    private void waitForWriter() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for the log writer");
+        }
+    }
+
+    private void startWriter() {
+        if (writerRunning)
+            return;
+        writerRunning = true;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "simpledb-log-writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Takes the next block to write, or returns null when the writer should exit. */
+    private synchronized Block nextBlock() {
+        long idleSince = System.currentTimeMillis();
+        while (sealed.isEmpty()) {
+            if (current != null && current.buf.position() > 0) {
+                // nothing full: write what there is rather than sit on it
+                seal();
+                break;
+            }
+            long left = idleSince + WRITER_IDLE_MS - System.currentTimeMillis();
+            if (closed || failure != null || left <= 0) {
+                writerRunning = false;
+                return null;
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                writerRunning = false;
+                return null;
+            }
+        }
+        return sealed.peek();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Block b = nextBlock();
+            if (b == null)
+                return;
+            ByteBuffer buf = b.buf;
+            buf.flip();
+            try {
+                while (buf.hasRemaining())
+                    channel.write(buf, b.start + buf.position());
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    writerRunning = false;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                written = b.start + buf.limit();
+                buf.clear();
+                sealed.poll();
+                free.add(b);
+                notifyAll();
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -32,6 +34,17 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file as they are created. Each one is
+serialized in memory and appended to a {@link LogBuffer}, which
+assigns its LSN (its offset in the log) and has a background thread
+write it out, batching many records per system call.  force() first
+waits for the buffer to drain, so anything appended before a force is
+on disk once it returns.  Code that reads the log back through raf
+must call drainLog() first.
 */
 
 /**
@@ -93,6 +106,37 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // records are serialized into record and appended to logBuffer, which
+    // writes them to raf's channel in the background. Reading the log
+    // through raf requires draining the buffer first (see drainLog).
+    private LogBuffer logBuffer = null; //protected by this
+    private final RecordBuffer recordBytes = new RecordBuffer(); //protected by this
+    private final DataOutputStream record = new DataOutputStream(recordBytes); //protected by this
+
+    /** A ByteArrayOutputStream whose array can be appended without a copy. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(256);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    boolean groupCommit = false; //protected by this
+    // bumped when logTruncate rewrites the log; written under both this
+    // and flushLock, so it may be read under either
+    long logGeneration = 0;
+    // group commit state, protected by flushLock
+    private final Object flushLock = new Object();
+    private long groupCommitDelay = 0;
+    private int groupCommitBatch = 1;
+    private long flushedOffset = -1;
+    private boolean flushing = false;
+    private int waitingCommits = 0;
+    private long groupCommitFlushes = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -133,6 +177,28 @@ public class LogFile {
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
         }
+        if (logBuffer == null) {
+            // appends continue where recovery (or the truncation above)
+            // left the file pointer
+            currentOffset = raf.getFilePointer();
+            logBuffer = new LogBuffer(raf.getChannel(), currentOffset);
+        }
+    }
+
+    // append the record built in record to the log buffer. The record
+    // starts at currentOffset, which is its LSN.
+    long appendRecord() throws IOException {
+        record.flush();
+        long lsn = logBuffer.append(recordBytes.bytes(), recordBytes.size());
+        recordBytes.reset();
+        currentOffset = logBuffer.getEnd();
+        return lsn;
+    }
+
+    // make every appended record readable through raf
+    void drainLog() throws IOException {
+        if (logBuffer != null)
+            logBuffer.drain();
     }
 
     public synchronized int getTotalRecords() {
@@ -158,10 +224,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                record.writeInt(ABORT_RECORD);
+                record.writeLong(tid.getId());
+                record.writeLong(currentOffset);
+                appendRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -173,17 +239,139 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitEnd, generation;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            record.writeInt(COMMIT_RECORD);
+            record.writeLong(tid.getId());
+            record.writeLong(currentOffset);
+            appendRecord();
+            commitEnd = currentOffset;
+            generation = logGeneration;
+            tidToFirstLogRecord.remove(tid.getId());
+            if (!groupCommit) {
+                force();
+                return;
+            }
+        }
+        waitForFlush(commitEnd, generation);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Turn group commit on or off.
+        In group commit mode logCommit appends its record and then waits
+        for a shared force() instead of forcing the log itself. One of
+        the waiting committers (the leader) waits up to maxDelayMillis,
+        or until maxBatchSize commits are waiting, and then forces the
+        log once for all of them; commits that arrive while it is
+        forcing are batched into the next force.  logCommit still only
+        returns once its record is on disk.
+
+        @param enabled whether to batch commit forces
+        @param maxDelayMillis how long the leader waits for more commits
+          before forcing (0 forces right away, batching only the commits
+          that arrived during the previous force)
+        @param maxBatchSize the number of waiting commits that triggers
+          a force before the delay is up
+    */
+    public void setGroupCommit(boolean enabled, long maxDelayMillis, int maxBatchSize) {
+        synchronized (this) {
+            groupCommit = enabled;
+        }
+        synchronized (flushLock) {
+            groupCommitDelay = Math.max(maxDelayMillis, 0);
+            groupCommitBatch = Math.max(maxBatchSize, 1);
+        }
+    }
+
+    /** @return the number of log forces done on behalf of group commits */
+    public long getGroupCommitFlushes() {
+        synchronized (flushLock) {
+            return groupCommitFlushes;
+        }
+    }
+
+    /** Blocks until the log is durable up to offset end, forcing it
+        (as the leader) if no other committer is already doing so.
+        Offsets change when the log is truncated, so end is only
+        compared against flushes of the same log generation; truncation
+        forces the whole log. */
+    private void waitForFlush(long end, long generation) throws IOException {
+        synchronized (flushLock) {
+            waitingCommits++;
+            flushLock.notifyAll();
+        }
+        try {
+            while (true) {
+                synchronized (flushLock) {
+                    if (logGeneration != generation || flushedOffset >= end)
+                        return;
+                    if (flushing) {
+                        waitForFlushLock(0);
+                        continue;
+                    }
+                    // become the leader: give other commits a chance to join
+                    flushing = true;
+                    long deadline = System.currentTimeMillis() + groupCommitDelay;
+                    long left = groupCommitDelay;
+                    boolean gathered = false;
+                    try {
+                        while (waitingCommits < groupCommitBatch && left > 0) {
+                            waitForFlushLock(left);
+                            left = deadline - System.currentTimeMillis();
+                        }
+                        gathered = true;
+                    } finally {
+                        if (!gathered) {
+                            flushing = false;
+                            flushLock.notifyAll();
+                        }
+                    }
+                }
+                long targetGeneration;
+                FileChannel channel;
+                LogBuffer buffer;
+                synchronized (this) {
+                    targetGeneration = logGeneration;
+                    channel = raf.getChannel();
+                    buffer = logBuffer;
+                }
+                long durable = -1;
+                try {
+                    // neither the drain nor the sync blocks appends
+                    // (FileChannel.force may run concurrently with writes)
+                    long target = buffer.drain();
+                    channel.force(true);
+                    durable = target;
+                } catch (ClosedChannelException e) {
+                    // logTruncate replaced the file, and forced the new one
+                } finally {
+                    synchronized (flushLock) {
+                        if (targetGeneration == logGeneration && durable > flushedOffset) {
+                            flushedOffset = durable;
+                            groupCommitFlushes++;
+                        }
+                        flushing = false;
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            synchronized (flushLock) {
+                waitingCommits--;
+            }
+        }
+    }
+
+    private void waitForFlushLock(long millis) throws IOException {
+        try {
+            flushLock.wait(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for group commit");
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,8 +385,8 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
@@ -207,18 +395,18 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        record.writeInt(UPDATE_RECORD);
+        record.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(record,before);
+        writePageData(record,after);
+        record.writeLong(currentOffset);
+        appendRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -233,16 +421,16 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
@@ -265,7 +453,7 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageClass.getConstructor(pid.getClass(), byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,7 +463,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -290,6 +478,9 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
@@ -307,11 +498,11 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        record.writeInt(BEGIN_RECORD);
+        record.writeLong(tid.getId());
+        record.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -321,35 +512,34 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpOffset = currentOffset;
+                record.writeInt(CHECKPOINT_RECORD);
+                record.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                record.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    record.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    record.writeLong(tidToFirstLogRecord.get(key));
                 }
+                record.writeLong(startCpOffset);
+                appendRecord();
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                drainLog();
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -361,6 +551,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        drainLog();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -450,6 +641,14 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        logBuffer.close();
+        logBuffer = new LogBuffer(raf.getChannel(), currentOffset);
+        force();
+        synchronized (flushLock) {
+            logGeneration++;
+            flushedOffset = currentOffset;
+            flushLock.notifyAll();
+        }
         //print();
     }
 
@@ -466,6 +665,7 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
+                drainLog();
                 // some code goes here
             }
         }
@@ -478,6 +678,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            logBuffer.close();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -493,6 +694,7 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
+                drainLog();
                 // some code goes here
             }
          }
@@ -504,6 +706,7 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        drainLog();
         raf.getChannel().force(true);
     }
 
@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The join algorithm chosen by the optimizer, or null if none was chosen */
+    public JoinOptimizer.JoinAlgorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +66,21 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode that is to be run with the
+     * given join algorithm. */
+    public LogicalJoinNode withAlgorithm(JoinOptimizer.JoinAlgorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode();
+        j2.t1Alias = t1Alias;
+        j2.t2Alias = t2Alias;
+        j2.f1PureName = f1PureName;
+        j2.f1QuantifiedName = f1QuantifiedName;
+        j2.f2PureName = f2PureName;
+        j2.f2QuantifiedName = f2QuantifiedName;
+        j2.p = p;
+        j2.algorithm = a;
+        return j2;
+    }
+    
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
@@ -271,6 +271,68 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Parse the constant of a filter as a field of type ftyp */
+    private static Field filterConstant(LogicalFilterNode lf, Type ftyp) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Pick the access path of every base table.  A table stored as a
+     *  {@link BTreeFile} is read with a {@link BTreeScan} instead of a
+     *  {@link SeqScan} when one of its filters is sargable on the index
+     *  key (any comparison but &lt;&gt; and LIKE) and
+     *  {@link TableStats#estimateIndexScanCost} for the most selective
+     *  such filter is below {@link TableStats#estimateScanCost}.  The
+     *  scan in subplanMap is replaced accordingly.
+     *  @return the filter answered by the index scan, by table alias
+     */
+    private HashMap<String,LogicalFilterNode> chooseIndexScans(TransactionId t, HashMap<String,TableStats> statsMap, boolean explain) {
+        HashMap<String,LogicalFilterNode> chosen = new HashMap<String,LogicalFilterNode>();
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            if (!(file instanceof BTreeFile))
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            int keyField = ((BTreeFile) file).keyField();
+            TupleDesc td = file.getTupleDesc();
+            String keyName = td.getFieldName(keyField);
+
+            LogicalFilterNode best = null;
+            Field bestConstant = null;
+            double bestCost = s.estimateScanCost();
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(keyName)
+                        || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                    continue;
+                Field f;
+                try {
+                    f = filterConstant(lf, td.getFieldType(keyField));
+                } catch (NumberFormatException e) {
+                    continue; // reported when the filter itself is built
+                }
+                double cost = s.estimateIndexScanCost(s.estimateSelectivity(keyField, lf.p, f));
+                if (cost < bestCost) {
+                    best = lf;
+                    bestConstant = f;
+                    bestCost = cost;
+                }
+            }
+            if (best != null) {
+                subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias,
+                        new IndexPredicate(best.p, bestConstant)));
+                chosen.put(table.alias, best);
+                if (explain)
+                    System.out.println("Index scan on " + best.fieldQuantifiedName + " " + best.p + " " + best.c
+                            + ": cost " + bestCost + " vs. " + s.estimateScanCost() + " for a sequential scan");
+            }
+        }
+        return chosen;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -306,6 +368,8 @@ public class LogicalPlan {
 
         }
 
+        HashMap<String,LogicalFilterNode> indexFilters = chooseIndexScans(t, statsMap, explain);
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,10 +387,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -334,7 +395,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // the index scan already returns exactly the tuples matching its filter
+            if (indexFilters.get(lf.tableAlias) != lf)
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * MappedFile is a read-only memory mapping of a table file, used by HeapFile
+ * and BTreeFile when they are put in memory-mapped mode. Reads are served from
+ * the OS page cache without a system call per page.
+ * <p>
+ * The file is mapped in fixed-size segments (a single MappedByteBuffer cannot
+ * exceed 2GB). A segment that was mapped while the file was shorter is
+ * remapped the first time a read goes past its end, so pages appended after
+ * the mapping was made are picked up. Writes still go through the regular
+ * file APIs; on a shared mapping those are visible here immediately. The file
+ * must not be truncated while it is mapped.
+ */
+public class MappedFile {
+
+    /** Size of one mapped segment. */
+    private static final long SEGMENT_SIZE = 1L << 26;
+
+    private final File f;
+    private FileChannel channel;
+    private final ArrayList<MappedByteBuffer> segments;
+
+    public MappedFile(File f) {
+        this.f = f;
+        this.channel = null;
+        this.segments = new ArrayList<MappedByteBuffer>();
+    }
+
+    /**
+     * Copies dst.length bytes starting at offset into dst.
+     * @return false if the file is not long enough
+     */
+    public boolean read(long offset, byte[] dst) throws IOException {
+        int copied = 0;
+        while (copied < dst.length) {
+            long pos = offset + copied;
+            int seg_no = (int) (pos / SEGMENT_SIZE);
+            int seg_off = (int) (pos % SEGMENT_SIZE);
+            int n = (int) Math.min(dst.length - copied, SEGMENT_SIZE - seg_off);
+            ByteBuffer seg = segment(seg_no, seg_off + n);
+            if (seg == null)
+                return false;
+            // duplicate so concurrent readers don't share a position
+            ByteBuffer view = seg.duplicate();
+            view.position(seg_off);
+            view.get(dst, copied, n);
+            copied += n;
+        }
+        return true;
+    }
+
+    /**
+     * Returns segment seg_no, (re)mapping it if it does not yet cover
+     * min_len bytes, or null if the file is too short.
+     */
+    private synchronized ByteBuffer segment(int seg_no, int min_len) throws IOException {
+        while (segments.size() <= seg_no)
+            segments.add(null);
+        MappedByteBuffer seg = segments.get(seg_no);
+        if (seg != null && seg.capacity() >= min_len)
+            return seg;
+
+        if (channel == null)
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        long start = seg_no * SEGMENT_SIZE;
+        long len = Math.min(SEGMENT_SIZE, channel.size() - start);
+        if (len < min_len)
+            return null;
+        seg = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+        segments.set(seg_no, seg);
+        return seg;
+    }
+
+    /** Drops the mappings and closes the file. */
+    public synchronized void close() throws IOException {
+        segments.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -5,9 +5,11 @@ import java.util.NoSuchElementException;
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>open</code> and <code>readNext</code>; those that can produce batches
+ * of tuples without going through rows also override
+ * <code>fetchNextBatch</code>.
  */
-public abstract class Operator implements OpIterator {
+public abstract class Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -44,6 +46,28 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        // a tuple hasNext() already fetched goes first
+        if (next != null)
+            return TupleBatch.fill(this, TupleBatch.DEFAULT_SIZE);
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is finished.
+     * Operator uses this method to implement <code>nextBatch</code>; this
+     * version collects tuples from <code>fetchNext</code>.
+     * 
+     * @return a batch with at least one selected row, or null if the
+     *         iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        return TupleBatch.fill(this, TupleBatch.DEFAULT_SIZE);
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -25,9 +25,19 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
@@ -88,7 +98,12 @@ public class OperatorCardinality {
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    /**
+     * Shared by all the join operators: j joins its two children on
+     * field1Name pred field2Name.
+     */
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate pred, String field1Name, String field2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -98,77 +113,20 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
-        String tableAlias2 = tmp2[0];
-        String pureFieldName2 = tmp2[1];
-
-        boolean child1HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias1))
-                .equals(pureFieldName1);
-        boolean child2HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias2))
-                .equals(pureFieldName2);
-
-        if (child1 instanceof Operator) {
-            Operator child1O = (Operator) child1;
-            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
-                    tableStats);
-            child1HasJoinPK = pk || child1HasJoinPK;
-            child1Card = child1O.getEstimatedCardinality();
-            child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        if (child2 instanceof Operator) {
-            Operator child2O = (Operator) child2;
-            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
-                    tableStats);
-            child2HasJoinPK = pk || child2HasJoinPK;
-            child2Card = child2O.getEstimatedCardinality();
-            child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
-                pureFieldName1, pureFieldName2, child1Card, child2Card,
-                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
-        return child1HasJoinPK || child2HasJoinPK;
-    }
-
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-            Map<String, Integer> tableAliasToId,
-            Map<String, TableStats> tableStats) {
-
-        OpIterator[] children = j.getChildren();
-        OpIterator child1 = children[0];
-        OpIterator child2 = children[1];
-        int child1Card = 1;
-        int child2Card = 1;
-
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
-        String tableAlias1 = tmp1[0];
-        String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
         boolean child1HasJoinPK = Database.getCatalog()
                 .getPrimaryKey(tableAliasToId.get(tableAlias1))
                 .equals(pureFieldName1);
-        ;
         boolean child2HasJoinPK = Database.getCatalog()
                 .getPrimaryKey(tableAliasToId.get(tableAlias2))
                 .equals(pureFieldName2);
-        ;
 
         if (child1 instanceof Operator) {
             Operator child1O = (Operator) child1;
@@ -194,8 +152,8 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(pred
+                .getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -1,13 +1,29 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, optionally
+ * keeping only the first tuples of the ordering (ORDER BY ... LIMIT n).
+ * <p>
+ * Inputs that fit in the memory budget given to the constructor are sorted
+ * in memory. Larger inputs are sorted with an external merge sort: the child
+ * is read a memory-full at a time, each memory-full is sorted and written to
+ * a temporary file as a run, and the runs are merged. With a limit no larger
+ * than the budget, only the best tuples seen so far are kept, in a bounded
+ * heap, and nothing is written out.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** Default number of tuples held in memory while sorting. */
+    public final static int MAX_TUPLES = 20000;
+    /** Limit meaning every tuple of the child is returned. */
+    public final static int NO_LIMIT = -1;
+    /** Number of runs merged at a time. */
+    private final static int MERGE_FANOUT = 64;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
@@ -15,6 +31,14 @@ public class OrderBy extends Operator {
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private final int limit;
+    private final int maxTuples;
+    private final TupleComparator comparator;
+    /** sorted runs written to disk, oldest first; empty for in-memory sorts */
+    transient private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    /** the final merge of an external sort, and the tuples it returned */
+    transient private Merge merge = null;
+    transient private int returned = 0;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +51,37 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, NO_LIMIT);
+    }
+
+    /**
+     * Creates a new OrderBy node returning the first tuples of the ordering.
+     * 
+     * @param limit
+     *            the number of tuples to return, or NO_LIMIT
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int limit) {
+        this(orderbyField, asc, child, limit, MAX_TUPLES);
+    }
+
+    /**
+     * Creates a new OrderBy node with a memory budget.
+     * 
+     * @param limit
+     *            the number of tuples to return, or NO_LIMIT
+     * @param maxTuples
+     *            the number of tuples the sort may hold in memory before it
+     *            writes sorted runs to disk
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int limit, int maxTuples) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.limit = limit < 0 ? NO_LIMIT : limit;
+        this.maxTuples = Math.max(maxTuples, 1);
+        this.comparator = new TupleComparator(orderbyField, asc);
     }
     
     public boolean isASC()
@@ -48,6 +98,12 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the number of tuples returned, or NO_LIMIT */
+    public int getLimit()
+    {
+        return this.limit;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -55,22 +111,131 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        discard();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        if (limit != NO_LIMIT && limit <= maxTuples)
+            topN();
+        else
+            sort();
         super.open();
     }
 
+    /**
+     * Reads the child, keeping the limit best tuples in a heap whose root is
+     * the worst of them. Ties keep the tuple read first, as a stable sort
+     * would.
+     */
+    private void topN() throws DbException, TransactionAbortedException {
+        PriorityQueue<Head> heap = new PriorityQueue<Head>(Math.max(limit, 1),
+                Collections.reverseOrder(new HeadComparator(comparator)));
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (limit == 0)
+                continue;
+            if (heap.size() < limit) {
+                heap.add(new Head(t, seq++));
+            } else if (comparator.compare(t, heap.peek().t) < 0) {
+                heap.poll();
+                heap.add(new Head(t, seq++));
+            }
+        }
+        Head[] best = heap.toArray(new Head[heap.size()]);
+        Arrays.sort(best, new HeadComparator(comparator));
+        for (Head h : best)
+            childTups.add(h.t);
+        it = childTups.iterator();
+    }
+
+    /**
+     * Reads the child a memory-full at a time. If it all fits, it is sorted
+     * in memory; otherwise each memory-full is written out as a sorted run,
+     * and the runs are merged down to at most MERGE_FANOUT, which fetchNext
+     * merges as it goes. The last memory-full stays in memory as the newest
+     * run.
+     */
+    private void sort() throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            if (childTups.size() == maxTuples) {
+                Collections.sort(childTups, comparator);
+                runs.add(writeRun(new TupleIterator(td, childTups)));
+                childTups.clear();
+            }
+            childTups.add(child.next());
+        }
+        Collections.sort(childTups, comparator);
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            return;
+        }
+        // keep the last input free for the run still in memory
+        while (runs.size() > MERGE_FANOUT - 1) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += MERGE_FANOUT) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_FANOUT, runs.size()));
+                OpIterator[] inputs = new OpIterator[group.size()];
+                for (int j = 0; j < inputs.length; j++)
+                    inputs[j] = runIterator(group.get(j));
+                merged.add(writeRun(new Merge(inputs)));
+                for (SpillFile f : group)
+                    f.delete();
+            }
+            runs = merged;
+        }
+        OpIterator[] inputs = new OpIterator[runs.size() + 1];
+        for (int i = 0; i < runs.size(); i++)
+            inputs[i] = runIterator(runs.get(i));
+        inputs[runs.size()] = new TupleIterator(td, childTups);
+        merge = new Merge(inputs);
+        merge.open();
+        returned = 0;
+    }
+
+    private SpillFile writeRun(OpIterator sorted) throws DbException, TransactionAbortedException {
+        try {
+            SpillFile run = new SpillFile(td);
+            sorted.open();
+            while (sorted.hasNext())
+                run.add(sorted.next());
+            sorted.close();
+            return run;
+        } catch (IOException e) {
+            throw new DbException("order by could not write sorted run");
+        }
+    }
+
+    private static OpIterator runIterator(SpillFile run) throws DbException {
+        try {
+            return run.iterator();
+        } catch (IOException e) {
+            throw new DbException("order by could not write sorted run");
+        }
+    }
+
+    /** Closes the merge and deletes the runs and buffered tuples. */
+    private void discard() {
+        if (merge != null)
+            merge.close();
+        for (SpillFile run : runs)
+            run.delete();
+        runs = new ArrayList<SpillFile>();
+        merge = null;
+        childTups.clear();
+        it = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        discard();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merge != null) {
+            merge.rewind();
+            returned = 0;
+        } else
+            it = childTups.iterator();
     }
 
     /**
@@ -82,6 +247,12 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null) {
+            if (!merge.hasNext() || (limit != NO_LIMIT && returned >= limit))
+                return null;
+            returned++;
+            return merge.next();
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,6 +269,85 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
+    /**
+     * A tuple and a sequence number that breaks ties between equal tuples:
+     * the order it was read in, or the index of the run it came from.
+     */
+    private static class Head {
+        final Tuple t;
+        final long seq;
+
+        Head(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    private static class HeadComparator implements Comparator<Head> {
+        private final TupleComparator tuples;
+
+        HeadComparator(TupleComparator tuples) {
+            this.tuples = tuples;
+        }
+
+        public int compare(Head h1, Head h2) {
+            int c = tuples.compare(h1.t, h2.t);
+            if (c != 0)
+                return c;
+            return h1.seq < h2.seq ? -1 : (h1.seq == h2.seq ? 0 : 1);
+        }
+    }
+
+    /** Merges sorted inputs of the same tuple descriptor into one sorted stream. */
+    private class Merge implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final OpIterator[] inputs;
+        private PriorityQueue<Head> mergeHeads;
+
+        Merge(OpIterator[] inputs) {
+            this.inputs = inputs;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            mergeHeads = new PriorityQueue<Head>(inputs.length, new HeadComparator(comparator));
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i].open();
+                if (inputs[i].hasNext())
+                    mergeHeads.add(new Head(inputs[i].next(), i));
+            }
+        }
+
+        public boolean hasNext() {
+            return mergeHeads != null && !mergeHeads.isEmpty();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Head h = mergeHeads.poll();
+            OpIterator in = inputs[(int) h.seq];
+            if (in.hasNext())
+                mergeHeads.add(new Head(in.next(), h.seq));
+            return h.t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            for (OpIterator in : inputs)
+                in.close();
+            mergeHeads = null;
+        }
+    }
+
 }
 
 class TupleComparator implements Comparator<Tuple> {
@@ -2,9 +2,39 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
-
+ * PageLocker is the page-level shared/exclusive lock table used by the
+ * BufferPool.
+ * <p>
+ * Requests that cannot be granted right away wait in a per-page FIFO queue
+ * and sleep on that page's Condition; whenever a lock on the page is released
+ * (or a waiter gives up) the waiters are signalled and the request at the head
+ * of the queue is granted as soon as it is compatible with the current
+ * holders. A transaction that already holds a shared lock and asks for an
+ * exclusive one (an upgrade) is queued ahead of everyone else, since making
+ * it wait behind new requests for the same page can only deadlock.
+ * <p>
+ * The waits-for graph is kept up to date as waits start and end: every
+ * queued request carries its edges (to the lock holders and earlier queued
+ * requests it is stuck behind), and only the requests queued on a page are
+ * updated when that page's holders or queue change. Each time a request has
+ * to wait, the graph is searched for cycles through the new waiter. Only a
+ * request that closes a cycle causes an abort, and the victim is picked from
+ * the transactions on that cycle according to the {@link VictimPolicy}. A
+ * single request can close several cycles at once (an upgrade waits for
+ * every other sharer of the page), so victims are aborted until no cycle
+ * through the new waiter is left.
+ * <p>
+ * Every request is also counted in a per-table {@link LockStats}
+ * (acquisitions, waits, wait times, upgrades, timeouts and aborts).
+ * <p>
+ * All state is guarded by a single short-held latch; nobody holds it while
+ * waiting.
  */
 public class PageLocker {
 	private HashMap<PageId, TransactionId> exclusives;
@@ -13,21 +43,115 @@ public class PageLocker {
 	private HashMap<TransactionId, Set<PageId>> txn_exclusives;
 	private HashMap<TransactionId, Set<PageId>> txn_shareds;
 	
+	private final ReentrantLock latch;
+	private HashMap<PageId, WaitQueue> wait_queues;
+	/** the queued requests of each waiting transaction */
+	private HashMap<TransactionId, List<LockRequest>> txn_waits;
+
+	/** How to choose which transaction on a waits-for cycle to abort. */
+	public enum VictimPolicy {
+		/** abort the transaction that started last */
+		YOUNGEST,
+		/** abort the transaction holding the fewest locks (youngest on ties) */
+		FEWEST_LOCKS
+	}
+
+	private VictimPolicy victim_policy;
+	private long deadlocks_detected;
+	private ConcurrentHashMap<Integer, LockStats> table_stats;
+
+	/** A lock request that could not be granted immediately. */
+	private static class LockRequest {
+		final TransactionId tid;
+		final PageId pid;
+		final Permissions perm;
+		/** set when the transaction completes or is chosen as a deadlock victim */
+		boolean cancelled;
+		/** the transactions this request waits for: its waits-for edges */
+		final Set<TransactionId> waits_for;
+
+		LockRequest(TransactionId tid, PageId pid, Permissions perm) {
+			this.tid = tid;
+			this.pid = pid;
+			this.perm = perm;
+			this.cancelled = false;
+			this.waits_for = new HashSet<TransactionId>();
+		}
+	}
+
+	/** Waiting requests for one page, in grant order. */
+	private static class WaitQueue {
+		final LinkedList<LockRequest> waiting = new LinkedList<LockRequest>();
+		final Condition changed;
+
+		WaitQueue(Condition changed) {
+			this.changed = changed;
+		}
+	}
 
     /**
-     * Constructs a heap file backed by the specified file.
-     * 
-     * @param f
-     *            the file that stores the on-disk backing store for this heap
-     *            file.
+     * Constructs an empty lock table that aborts the youngest transaction on
+     * a deadlock.
      */
     public PageLocker() {
+    	this(VictimPolicy.YOUNGEST);
+    }
+
+    /**
+     * Constructs an empty lock table.
+     * @param policy how deadlock victims are chosen
+     */
+    public PageLocker(VictimPolicy policy) {
         // some code goes here
     	this.exclusives = new HashMap<PageId, TransactionId>();
     	this.shareds = new HashMap<PageId, Set<TransactionId>>();
     	this.txn_exclusives = new HashMap<TransactionId, Set<PageId>>();
     	this.txn_shareds = new HashMap<TransactionId, Set<PageId>>();
-    	   	
+    	this.latch = new ReentrantLock();
+    	this.wait_queues = new HashMap<PageId, WaitQueue>();
+    	this.txn_waits = new HashMap<TransactionId, List<LockRequest>>();
+    	this.victim_policy = policy;
+    	this.deadlocks_detected = 0;
+    	this.table_stats = new ConcurrentHashMap<Integer, LockStats>();
+    }
+
+    public void set_victim_policy(VictimPolicy policy) {
+    	latch.lock();
+    	try {
+    		this.victim_policy = policy;
+    	} finally {
+    		latch.unlock();
+    	}
+    }
+
+    /**
+     * @return the live lock counters for a table (all zero if nothing on the
+     *   table has been locked yet)
+     */
+    public LockStats get_lock_stats(int tableid) {
+    	LockStats stats = table_stats.get(tableid);
+    	if (stats == null) {
+    		LockStats fresh = new LockStats(tableid);
+    		stats = table_stats.putIfAbsent(tableid, fresh);
+    		if (stats == null)
+    			stats = fresh;
+    	}
+    	return stats;
+    }
+
+    /** @return the lock counters of every table locked so far, by table id */
+    public Map<Integer, LockStats> get_all_lock_stats() {
+    	return Collections.unmodifiableMap(table_stats);
+    }
+
+    /** @return the number of waits-for cycles found so far */
+    public long get_deadlocks_detected() {
+    	latch.lock();
+    	try {
+    		return deadlocks_detected;
+    	} finally {
+    		latch.unlock();
+    	}
     }
     
     public boolean check_lock(TransactionId tid, PageId pid, Permissions p) {
@@ -82,24 +206,279 @@ public class PageLocker {
     		//there are only two permissions... shouldnt get here
     		get_lock = false;
     	}
-    	System.out.println(get_lock);
 		return get_lock;	
     }
     
+    /**
+     * Tries to grant the lock without waiting.
+     * @return true if tid now holds the requested lock on pid
+     */
     public boolean acquire_lock(TransactionId tid, PageId pid, Permissions p) {
-    	//System.out.println("txn: "+ tid.getId()+ "page: "+ pid.getPageNumber()+ " perm "+p.toString());
-    	boolean can_lock = check_lock(tid, pid, p);
-    	if (can_lock) {
-    		if (p.permLevel == 0) {
-    			add_shared_lock(tid, pid);
+    	latch.lock();
+    	try {
+    		WaitQueue q = wait_queues.get(pid);
+    		boolean queue_empty = q == null || q.waiting.isEmpty();
+    		if ((queue_empty || holds_lock(tid, pid)) && check_lock(tid, pid, p)) {
+    			grant(tid, pid, p);
     			return true;
-    		} else {
-    			add_exclusive_lock(tid, pid);
+    		}
+    		return false;
+    	} finally {
+    		latch.unlock();
+    	}
+    }
+
+    /**
+     * Acquires the lock, waiting in pid's queue until it is granted or the
+     * timeout expires. If waiting would close a cycle in the waits-for
+     * graph, one transaction on the cycle is aborted: either this call
+     * returns false right away, or the victim's own pending request does.
+     * @param timeout_ms how long to wait before giving up, or 0 to wait until
+     *   the lock is granted or tid is chosen as a deadlock victim
+     * @return true if tid now holds the requested lock on pid, false if tid
+     *   was chosen as a deadlock victim, the wait timed out, or the thread
+     *   was interrupted
+     */
+    public boolean acquire_lock(TransactionId tid, PageId pid, Permissions p, long timeout_ms) {
+    	latch.lock();
+    	LockRequest req = null;
+    	WaitQueue q = null;
+    	LockStats stats = null;
+    	long wait_start = 0;
+    	try {
+    		q = wait_queues.get(pid);
+    		boolean queue_empty = q == null || q.waiting.isEmpty();
+    		boolean holder = holds_lock(tid, pid);
+    		if ((queue_empty || holder) && check_lock(tid, pid, p)) {
+    			grant(tid, pid, p);
     			return true;
     		}
+    		if (q == null) {
+    			q = new WaitQueue(latch.newCondition());
+    			wait_queues.put(pid, q);
+    		}
+    		req = new LockRequest(tid, pid, p);
+    		//upgrades go ahead of everyone, o/w first come first served
+    		if (holder)
+    			q.waiting.addFirst(req);
+    		else
+    			q.waiting.addLast(req);
+    		List<LockRequest> mine = txn_waits.get(tid);
+    		if (mine == null) {
+    			mine = new ArrayList<LockRequest>(1);
+    			txn_waits.put(tid, mine);
+    		}
+    		mine.add(req);
+    		update_edges(pid);
+    		stats = get_lock_stats(pid.getTableId());
+    		stats.recordWait();
+    		wait_start = System.nanoTime();
+
+    		if (!resolve_deadlock(tid)) {
+    			stats.recordAbort();
+    			return false;
+    		}
+
+    		boolean timed = timeout_ms > 0;
+    		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+    		while (q.waiting.peekFirst() != req || !check_lock(tid, pid, p)) {
+    			if (req.cancelled) {
+    				stats.recordAbort();
+    				return false;
+    			}
+    			if (!timed) {
+    				q.changed.await();
+    				continue;
+    			}
+    			if (remaining <= 0) {
+    				stats.recordTimeout();
+    				return false;
+    			}
+    			remaining = q.changed.awaitNanos(remaining);
+    		}
+    		q.waiting.removeFirst();
+    		forget(req);
+    		req = null;
+    		grant(tid, pid, p);
+    		//the next request in line may be compatible too (e.g. several readers)
+    		if (q.waiting.isEmpty())
+    			wait_queues.remove(pid);
+    		else
+    			q.changed.signalAll();
+    		return true;
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		stats.recordAbort();
+    		return false;
+    	} finally {
+    		if (stats != null)
+    			stats.recordWaitTime(System.nanoTime() - wait_start);
+    		//Thread.stop() can throw out of await() without the latch
+    		if (!latch.isHeldByCurrentThread())
+    			latch.lock();
+    		try {
+    			if (req != null)
+    				abandon(pid, q, req);
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    }
+
+    /** Removes a request that gave up and lets the requests behind it retry. */
+    private void abandon(PageId pid, WaitQueue q, LockRequest req) {
+    	q.waiting.remove(req);
+    	forget(req);
+    	q.changed.signalAll();
+    	if (q.waiting.isEmpty() && wait_queues.get(pid) == q)
+    		wait_queues.remove(pid);
+    	else
+    		update_edges(pid);
+    }
+
+    /** Drops a request that has left its queue from the waits-for graph. */
+    private void forget(LockRequest req) {
+    	List<LockRequest> mine = txn_waits.get(req.tid);
+    	if (mine != null) {
+    		mine.remove(req);
+    		if (mine.isEmpty())
+    			txn_waits.remove(req.tid);
+    	}
+    }
+
+    /**
+     * Looks for waits-for cycles through tid, which has just queued a
+     * request, and aborts a victim on each of them until none is left.
+     * @return false if tid itself is a victim
+     */
+    private boolean resolve_deadlock(TransactionId tid) {
+    	while (true) {
+    		ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+    		if (!find_cycle(tid, tid, new HashSet<TransactionId>(), cycle))
+    			return true;
+    		deadlocks_detected++;
+    		TransactionId victim = choose_victim(cycle);
+    		if (victim.equals(tid))
+    			return false;
+    		cancel_requests(victim);
+    	}
+    }
+
+    /**
+     * Recomputes the waits-for edges of the requests queued on pid, after its
+     * holders or its queue changed. A queued request waits for every holder
+     * of a conflicting lock and for every request ahead of it in the queue.
+     */
+    private void update_edges(PageId pid) {
+    	WaitQueue q = wait_queues.get(pid);
+    	if (q == null)
+    		return;
+    	TransactionId ex_owner = exclusives.get(pid);
+    	Set<TransactionId> sharing = shareds.get(pid);
+    	ArrayList<TransactionId> ahead = new ArrayList<TransactionId>();
+    	for (LockRequest r : q.waiting) {
+    		r.waits_for.clear();
+    		if (ex_owner != null)
+    			r.waits_for.add(ex_owner);
+    		if (r.perm.permLevel == 1 && sharing != null)
+    			r.waits_for.addAll(sharing);
+    		r.waits_for.addAll(ahead);
+    		r.waits_for.remove(r.tid);
+    		ahead.add(r.tid);
+    	}
+    }
+
+    /** Depth-first search for a path from current back to start; fills in cycle. */
+    private boolean find_cycle(TransactionId start, TransactionId current,
+    		Set<TransactionId> visited, ArrayList<TransactionId> cycle) {
+    	visited.add(current);
+    	cycle.add(current);
+    	List<LockRequest> mine = txn_waits.get(current);
+    	if (mine != null) {
+    		for (LockRequest r : mine) {
+    			for (TransactionId next : r.waits_for) {
+    				if (next.equals(start))
+    					return true;
+    				if (!visited.contains(next) && find_cycle(start, next, visited, cycle))
+    					return true;
+    			}
+    		}
+    	}
+    	cycle.remove(cycle.size() - 1);
+    	return false;
+    }
+
+    private TransactionId choose_victim(ArrayList<TransactionId> cycle) {
+    	TransactionId victim = null;
+    	int victim_locks = 0;
+    	for (TransactionId t : cycle) {
+    		int locks = num_locks(t);
+    		boolean better;
+    		if (victim == null)
+    			better = true;
+    		else if (victim_policy == VictimPolicy.FEWEST_LOCKS && locks != victim_locks)
+    			better = locks < victim_locks;
+    		else
+    			better = t.getId() > victim.getId();
+    		if (better) {
+    			victim = t;
+    			victim_locks = locks;
+    		}
+    	}
+    	return victim;
+    }
+
+    private int num_locks(TransactionId tid) {
+    	Set<PageId> sh = txn_shareds.get(tid);
+    	Set<PageId> ex = txn_exclusives.get(tid);
+    	return (sh == null ? 0 : sh.size()) + (ex == null ? 0 : ex.size());
+    }
+
+    /** Makes every queued request of tid give up, and wakes them so they notice. */
+    private void cancel_requests(TransactionId tid) {
+    	List<LockRequest> mine = txn_waits.remove(tid);
+    	if (mine == null)
+    		return;
+    	for (LockRequest r : mine) {
+    		WaitQueue q = wait_queues.get(r.pid);
+    		r.cancelled = true;
+    		q.waiting.remove(r);
+    		q.changed.signalAll();
+    		if (q.waiting.isEmpty())
+    			wait_queues.remove(r.pid);
+    		else
+    			update_edges(r.pid);
+    	}
+    }
+
+    private void grant(TransactionId tid, PageId pid, Permissions p) {
+    	Set<TransactionId> sharing = shareds.get(pid);
+    	boolean upgrade = p.permLevel == 1 && sharing != null && sharing.contains(tid);
+    	get_lock_stats(pid.getTableId()).recordAcquire(upgrade);
+    	if (p.permLevel == 0) {
+    		//already covered by an exclusive lock
+    		if (!tid.equals(exclusives.get(pid)))
+    			add_shared_lock(tid, pid);
+    	} else if (!tid.equals(exclusives.get(pid))) {
+    		add_exclusive_lock(tid, pid);
+    	}
+    	update_edges(pid);
+    }
+
+    private boolean holds_lock(TransactionId tid, PageId pid) {
+    	Set<PageId> my_ex_pages = txn_exclusives.get(tid);
+    	Set<PageId> my_sh_pages = txn_shareds.get(tid);
+    	return (my_ex_pages != null && my_ex_pages.contains(pid))
+    			|| (my_sh_pages != null && my_sh_pages.contains(pid));
+    }
+
+    /** Wakes the requests waiting on pid after a lock on it was released. */
+    private void lock_released(PageId pid) {
+    	WaitQueue q = wait_queues.get(pid);
+    	if (q != null) {
+    		update_edges(pid);
+    		q.changed.signalAll();
     	}
-    	//can't lock...
-    	return false;	
     }
     
     private void add_shared_lock(TransactionId tid, PageId pid) {
@@ -183,42 +562,94 @@ public class PageLocker {
     }
     
     public void release_page_lock(TransactionId tid, PageId pid) {
-    	Set<PageId> sh = txn_shareds.get(tid);
-    	if (sh != null && sh.contains(pid))
-    		remove_shared_lock(tid, pid);
-    	Set<PageId> ex = txn_exclusives.get(tid);
-    	if (ex != null && ex.contains(pid))
-    		remove_exclusive_lock(tid, pid);
+    	latch.lock();
+    	try {
+	    	Set<PageId> sh = txn_shareds.get(tid);
+	    	if (sh != null && sh.contains(pid))
+	    		remove_shared_lock(tid, pid);
+	    	Set<PageId> ex = txn_exclusives.get(tid);
+	    	if (ex != null && ex.contains(pid))
+	    		remove_exclusive_lock(tid, pid);
+	    	lock_released(pid);
+    	} finally {
+    		latch.unlock();
+    	}
     }
     
     public boolean has_lock(TransactionId tid, PageId pid) {
-    	Set<PageId> my_ex_pages = txn_exclusives.get(tid);
-    	Set<PageId> my_sh_pages = txn_shareds.get(tid);
-    	if (my_ex_pages.contains(pid) || my_sh_pages.contains(pid))
-    		return true;
-    	return false;
+    	latch.lock();
+    	try {
+    		return holds_lock(tid, pid);
+    	} finally {
+    		latch.unlock();
+    	}
     }
-    
-    public void release_all_locks(TransactionId tid) {
-    	Set<PageId> sh = txn_shareds.get(tid);
-    	if (sh != null) {
-    		for (PageId pid : sh) {
-    			Set<TransactionId> shared_t = shareds.get(pid);
-    			shared_t.remove(tid);
-    			if (shared_t.size() == 0) shareds.remove(pid);
-    			else { shareds.put(pid, shared_t); }
-    		}
-    		txn_shareds.remove(tid);
+
+    /** @return a copy of the set of pages tid holds exclusive locks on */
+    public Set<PageId> exclusive_pages(TransactionId tid) {
+    	latch.lock();
+    	try {
+    		Set<PageId> ex = txn_exclusives.get(tid);
+    		return ex == null ? new HashSet<PageId>() : new HashSet<PageId>(ex);
+    	} finally {
+    		latch.unlock();
     	}
-    	Set<PageId> ex = txn_exclusives.get(tid);
-    	if (ex != null) {
-    		for (PageId pid : ex) {
-    			TransactionId ex_t = exclusives.get(pid);
-    			if (ex_t != null) exclusives.remove(pid);
+    }
+
+    /**
+     * @return true if a transaction other than tid holds, or is queued for,
+     *   an exclusive lock on pid
+     */
+    public boolean write_locked_by_other(TransactionId tid, PageId pid) {
+    	latch.lock();
+    	try {
+    		TransactionId holder = exclusives.get(pid);
+    		if (holder != null && !holder.equals(tid))
+    			return true;
+    		WaitQueue q = wait_queues.get(pid);
+    		if (q != null) {
+    			for (LockRequest req : q.waiting) {
+    				if (req.perm == Permissions.READ_WRITE && !req.tid.equals(tid))
+    					return true;
+    			}
     		}
-    		txn_exclusives.remove(tid);
+    		return false;
+    	} finally {
+    		latch.unlock();
+    	}
+    }
+
+    /**
+     * Releases every lock held by tid and cancels any requests it still has
+     * queued (e.g. from a thread that was stopped while waiting).
+     */
+    public void release_all_locks(TransactionId tid) {
+    	latch.lock();
+    	try {
+	    	Set<PageId> sh = txn_shareds.get(tid);
+	    	if (sh != null) {
+	    		for (PageId pid : sh) {
+	    			Set<TransactionId> shared_t = shareds.get(pid);
+	    			shared_t.remove(tid);
+	    			if (shared_t.size() == 0) shareds.remove(pid);
+	    			else { shareds.put(pid, shared_t); }
+	    			lock_released(pid);
+	    		}
+	    		txn_shareds.remove(tid);
+	    	}
+	    	Set<PageId> ex = txn_exclusives.get(tid);
+	    	if (ex != null) {
+	    		for (PageId pid : ex) {
+	    			TransactionId ex_t = exclusives.get(pid);
+	    			if (ex_t != null) exclusives.remove(pid);
+	    			lock_released(pid);
+	    		}
+	    		txn_exclusives.remove(tid);
+	    	}
+	    	cancel_requests(tid);
+    	} finally {
+    		latch.unlock();
     	}
-    	
     }
 }
 
@@ -108,6 +108,77 @@ public class Predicate implements Serializable {
         return tup_f.compare(this.getOp(), this.operand);
     }
 
+    /**
+     * Deselects the rows of a batch that do not pass the predicate. INT
+     * fields compared to an INT operand are compared straight from the
+     * batch's int column.
+     * 
+     * @param b
+     *            The batch to filter
+     */
+    public void filter(TupleBatch b) {
+    	int n = b.size();
+    	int[] keep = new int[n];
+    	int kept = 0;
+    	if (!b.isIntColumn(field_num) || !(this.operand instanceof IntField)) {
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (b.getField(field_num, r).compare(this.operation, this.operand))
+    				keep[kept++] = r;
+    		}
+    		b.select(keep, kept);
+    		return;
+    	}
+    	int[] col = b.intColumn(field_num);
+    	int v = ((IntField) this.operand).getValue();
+    	switch (this.operation) {
+    	case EQUALS:
+    	case LIKE:
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (col[r] == v)
+    				keep[kept++] = r;
+    		}
+    		break;
+    	case NOT_EQUALS:
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (col[r] != v)
+    				keep[kept++] = r;
+    		}
+    		break;
+    	case GREATER_THAN:
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (col[r] > v)
+    				keep[kept++] = r;
+    		}
+    		break;
+    	case GREATER_THAN_OR_EQ:
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (col[r] >= v)
+    				keep[kept++] = r;
+    		}
+    		break;
+    	case LESS_THAN:
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (col[r] < v)
+    				keep[kept++] = r;
+    		}
+    		break;
+    	case LESS_THAN_OR_EQ:
+    		for (int i = 0; i < n; i++) {
+    			int r = b.row(i);
+    			if (col[r] <= v)
+    				keep[kept++] = r;
+    		}
+    		break;
+    	}
+    	b.select(keep, kept);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -11,6 +11,7 @@ public class Project extends Operator {
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] outFieldArray;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -39,6 +40,9 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFieldArray = new int[fieldList.size()];
+        for (int i = 0; i < outFieldArray.length; i++)
+            outFieldArray[i] = fieldList.get(i);
     }
 
     public TupleDesc getTupleDesc() {
@@ -80,6 +84,15 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Returns the next batch of the
+     * child with the projected fields, sharing its columns.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = TupleBatch.next(child);
+        return batch == null ? null : batch.project(outFieldArray, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
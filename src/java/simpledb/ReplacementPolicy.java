@@ -0,0 +1,46 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should evict
+ * when it needs room for a new one. The BufferPool reports every page that
+ * enters, is touched, or leaves the pool, and asks the policy for a victim
+ * when it is full.
+ * <p>
+ * The BufferPool calls pageLoaded, pageRemoved and chooseVictim while
+ * holding its own monitor, but pageAccessed is called on the hit path without
+ * it, so implementations must allow pageAccessed to run concurrently with
+ * everything else.
+ *
+ * @see ClockPolicy
+ * @see TwoQueuePolicy
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy whether a resident page may be evicted right now
+     * (e.g. it is not dirty under NO STEAL). Answering true commits the
+     * BufferPool to evicting the page, so the policy must return the first
+     * page accepted by the filter.
+     */
+    public interface VictimFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /** A page was read from disk (or created) and added to the pool. */
+    public void pageLoaded(PageId pid);
+
+    /** A page already resident in the pool was requested again. */
+    public void pageAccessed(PageId pid);
+
+    /** A page was dropped from the pool without being chosen as a victim. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks a page to evict and stops tracking it.
+     *
+     * @param filter decides which of the resident pages are evictable
+     * @return the page to evict, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(VictimFilter filter);
+}
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId txn_id;
@@ -15,6 +15,7 @@ public class SeqScan implements OpIterator {
     private String table_alias;
     private DbFile table_hf;
     private DbFileIterator seqscan_iterator;
+    private int read_ahead = HeapFile.DEFAULT_READ_AHEAD;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -38,7 +39,23 @@ public class SeqScan implements OpIterator {
     	this.table_id = tableid;
     	this.table_alias = tableAlias;
     	this.table_hf = Database.getCatalog().getDatabaseFile(this.table_id);
-    	this.seqscan_iterator = this.table_hf.iterator(tid);
+    	this.seqscan_iterator = make_iterator();
+    }
+
+    /**
+     * Sets how many pages ahead of the current one this scan may have the
+     * BufferPool read in the background (0 turns read-ahead off). Only heap
+     * files read ahead. Must be called before open().
+     */
+    public void setReadAhead(int pages) {
+    	this.read_ahead = pages;
+    	this.seqscan_iterator = make_iterator();
+    }
+
+    private DbFileIterator make_iterator() {
+    	if (this.table_hf instanceof HeapFile)
+    		return ((HeapFile) this.table_hf).iterator(this.txn_id, this.read_ahead);
+    	return this.table_hf.iterator(this.txn_id);
     }
 
     /**
@@ -60,6 +77,20 @@ public class SeqScan implements OpIterator {
         return this.table_alias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return this.table_id;
+    }
+
+    /**
+     * @return the transaction this scan runs as a part of
+     * */
+    public TransactionId getTransactionId() {
+        return this.txn_id;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -77,7 +108,7 @@ public class SeqScan implements OpIterator {
     	this.table_id = tableid;
     	this.table_alias = tableAlias;
     	this.table_hf = Database.getCatalog().getDatabaseFile(tableid);
-    	this.seqscan_iterator = this.table_hf.iterator(this.txn_id);
+    	this.seqscan_iterator = make_iterator();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -129,6 +160,19 @@ public class SeqScan implements OpIterator {
         return this.seqscan_iterator.next();
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+    	if (this.seqscan_iterator instanceof HeapFile.HFIterator)
+    		return ((HeapFile.HFIterator) this.seqscan_iterator).nextBatch(TupleBatch.DEFAULT_SIZE);
+    	if (!this.seqscan_iterator.hasNext())
+    		return null;
+    	Tuple t = this.seqscan_iterator.next();
+    	TupleBatch batch = new TupleBatch(t.getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+    	batch.add(t);
+    	while (!batch.isFull() && this.seqscan_iterator.hasNext())
+    		batch.add(this.seqscan_iterator.next());
+    	return batch;
+    }
+
     public void close() {
         // some code goes here
     	this.seqscan_iterator.close();
@@ -0,0 +1,332 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is the page of a HeapFile made with the slotted layout (see
+ * {@link HeapFile#HeapFile(File, TupleDesc, boolean)}). A STRING field takes
+ * only as many bytes as the string has, rather than {@link Type#STRING_LEN},
+ * so pages of short strings hold many more tuples than a {@link HeapPage}.
+ * <p>
+ * The page starts with the number of entries in its slot directory and the
+ * offset where tuple data starts, followed by the directory itself: for each
+ * slot, the offset and length of its tuple, or zeros if the slot is empty.
+ * Tuples are stored from the end of the page down, INT fields in 4 bytes and
+ * STRING fields as a 2-byte length followed by the characters. Numbers in the
+ * header and the directory are unsigned 16-bit, so pages can be at most 64 KB.
+ * A page of all zeros is an empty page.
+ * <p>
+ * Deleting a tuple moves the tuples stored below it up over it, so the free
+ * space of a page is always in one piece, between the directory and the
+ * tuple data. Slot numbers, and so record ids, never change.
+ *
+ * @see HeapFile
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** bytes before the slot directory: entry count, start of tuple data */
+    private final static int HEADER_SIZE = 4;
+    /** bytes per slot directory entry: tuple offset, tuple length */
+    private final static int ENTRY_SIZE = 4;
+
+    /** size of the smallest tuple of the table */
+    private final int min_size;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * Tuples are decoded from data when they are first needed. The page does
+     * not change data (it copies it before its first insert or delete), but
+     * the caller must not change it either.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data, max_slots(id));
+        if (BufferPool.getPageSize() > 1 << 16)
+            throw new IOException("slotted pages can be at most 64 KB");
+        this.min_size = min_size(td);
+    }
+
+    /**
+     * Generates a byte array corresponding to an empty SlottedHeapPage: no
+     * directory entries, and tuple data starting at the end of the page.
+     */
+    public static byte[] createEmptyPageData() {
+        int len = BufferPool.getPageSize();
+        byte[] data = new byte[len];
+        // a 64 KB page stores its end as 0, see data_start()
+        data[2] = (byte) (len >>> 8);
+        data[3] = (byte) len;
+        return data;
+    }
+
+    /** @return the number of the smallest tuples of the table a page holds */
+    private static int max_slots(HeapPageId id) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(id.getTableId());
+        int n = (BufferPool.getPageSize() - HEADER_SIZE) / (ENTRY_SIZE + min_size(td));
+        return Math.min(n, 0xffff);
+    }
+
+    private static int min_size(TupleDesc td) {
+        int n = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            n += td.getFieldType(j) == Type.INT_TYPE ? 4 : 2;
+        return n;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, before_image_data());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    private int read_short(int off) {
+        return ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+    }
+
+    private void write_short(int off, int v) {
+        data[off] = (byte) (v >>> 8);
+        data[off + 1] = (byte) v;
+    }
+
+    /** @return the number of entries in the slot directory */
+    private int num_entries() {
+        return read_short(0);
+    }
+
+    /** @return the offset of the first byte of tuple data */
+    private int data_start() {
+        int start = read_short(2);
+        // an empty page stores 0, which is also how a 64 KB page size wraps
+        return start == 0 ? BufferPool.getPageSize() : start;
+    }
+
+    /** @return the offset of the directory entry of slot i */
+    private static int entry(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    private int tuple_offset(int i) {
+        return read_short(entry(i));
+    }
+
+    private int tuple_length(int i) {
+        return read_short(entry(i) + 2);
+    }
+
+    /** @return the bytes between the slot directory and the tuple data */
+    private int free_bytes() {
+        return data_start() - entry(num_entries());
+    }
+
+    /** @return the first empty slot of the directory, or its length if none */
+    private int first_empty() {
+        int n = num_entries();
+        for (int i = 0; i < n; i++) {
+            if (tuple_length(i) == 0)
+                return i;
+        }
+        return n;
+    }
+
+    /** @return the number of bytes t takes on the page */
+    private int tuple_size(Tuple t) {
+        int n = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                n += 4;
+            else
+                n += 2 + stored_string(t.getField(j)).length();
+        }
+        return n;
+    }
+
+    /** @return true if a tuple of len bytes fits on the page */
+    private boolean fits(int len) {
+        int n = num_entries();
+        if (first_empty() < n)
+            return len <= free_bytes();
+        return n < numSlots && len + ENTRY_SIZE <= free_bytes();
+    }
+
+    /** @return the offset of the field after field j, which is at off */
+    private int skip_field(int off, int j) {
+        return td.getFieldType(j) == Type.INT_TYPE ? off + 4 : off + 2 + read_short(off);
+    }
+
+    /** Decodes field j of a tuple, which is at off. */
+    private Field decode_at(int off, int j) throws NoSuchElementException {
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return new IntField(read_int(off));
+        int len = read_short(off);
+        if (len > Type.STRING_LEN)
+            throw new NoSuchElementException("parsing error!");
+        return new StringField(new String(data, off + 2, len), Type.STRING_LEN);
+    }
+
+    @Override
+    Tuple getTuple(int i) throws NoSuchElementException {
+        if (!isSlotUsed(i))
+            return null;
+        Tuple t = tuples[i];
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            int off = tuple_offset(i);
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, decode_at(off, j));
+                off = skip_field(off, j);
+            }
+            tuples[i] = t;
+        }
+        return t;
+    }
+
+    @Override
+    public Field getField(int i, int j) throws NoSuchElementException {
+        if (!isSlotUsed(i))
+            throw new NoSuchElementException("slot " + i + " is empty");
+        if (tuples[i] != null)
+            return tuples[i].getField(j);
+        int off = tuple_offset(i);
+        for (int k = 0; k < j; k++)
+            off = skip_field(off, k);
+        return decode_at(off, j);
+    }
+
+    @Override
+    public int fillBatch(TupleBatch b, int i) {
+        int n = num_entries();
+        int nfields = td.numFields();
+        for (; i < n && !b.isFull(); i++) {
+            if (tuple_length(i) == 0)
+                continue;
+            int row = b.addRow(new RecordId(pid, i));
+            int off = tuple_offset(i);
+            for (int j = 0; j < nfields; j++) {
+                if (b.isIntColumn(j))
+                    b.setInt(j, row, read_int(off));
+                else
+                    b.setField(j, row, decode_at(off, j));
+                off = skip_field(off, j);
+            }
+        }
+        return i < n ? i : numSlots;
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot of the
+     * directory or else in a new one.
+     * @throws DbException if the tuple does not fit or tupledesc is mismatch.
+     */
+    @Override
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("Tuple Descents don't match");
+        int len = tuple_size(t);
+        if (!fits(len))
+            throw new DbException("No room for the tuple");
+        own_data();
+        int i = first_empty();
+        if (i == num_entries())
+            write_short(0, i + 1);
+        int off = data_start() - len;
+        int p = off;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                write_int(p, ((IntField) t.getField(j)).getValue());
+                p += 4;
+            } else {
+                String s = stored_string(t.getField(j));
+                write_short(p, s.length());
+                p += 2;
+                for (int c = 0; c < s.length(); c++)
+                    data[p++] = (byte) s.charAt(c);
+            }
+        }
+        write_short(2, off);
+        write_short(entry(i), off);
+        write_short(entry(i) + 2, len);
+        t.setRecordId(new RecordId(pid, i));
+        tuples[i] = t;
+    }
+
+    /**
+     * Deletes the specified tuple from the page and moves the tuples stored
+     * below it up, so the free space stays in one piece.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    @Override
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid))
+            throw new DbException("Tuple not on this page");
+        int i = rid.getTupleNumber();
+        if (!isSlotUsed(i))
+            throw new DbException("This tuple slot is already empty/deleted");
+        own_data();
+        int off = tuple_offset(i);
+        int len = tuple_length(i);
+        int start = data_start();
+        System.arraycopy(data, start, data, start + len, off - start);
+        Arrays.fill(data, start, start + len, (byte) 0);
+        int n = num_entries();
+        for (int k = 0; k < n; k++) {
+            if (tuple_length(k) != 0 && tuple_offset(k) < off)
+                write_short(entry(k), tuple_offset(k) + len);
+        }
+        write_int(entry(i), 0);
+        while (n > 0 && tuple_length(n - 1) == 0)
+            n--;
+        write_short(0, n);
+        write_short(2, start + len);
+        tuples[i] = null;
+    }
+
+    /**
+     * Returns the number of tuples of the smallest size the table allows
+     * that still fit on this page.
+     */
+    @Override
+    public int getNumEmptySlots() {
+        int n = num_entries();
+        int used = getNonEmptyTuples();
+        int free = free_bytes();
+        int reuse = n - used;
+        int fit;
+        if (free >= reuse * min_size)
+            fit = reuse + (free - reuse * min_size) / (min_size + ENTRY_SIZE);
+        else
+            fit = free / min_size;
+        return Math.min(fit, numSlots - used);
+    }
+
+    @Override
+    public int getNonEmptyTuples() {
+        int n = num_entries();
+        int used = 0;
+        for (int i = 0; i < n; i++) {
+            if (tuple_length(i) != 0)
+                used++;
+        }
+        return used;
+    }
+
+    @Override
+    public boolean hasRoomFor(Tuple t) {
+        return td.equals(t.getTupleDesc()) && fits(tuple_size(t));
+    }
+
+    @Override
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < num_entries() && tuple_length(i) != 0;
+    }
+
+}
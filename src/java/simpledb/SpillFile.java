@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, for operators whose working set
+ * does not fit in memory. Tuples are appended with {@link #add} and read back,
+ * in the order they were added, through {@link #iterator}. Fields are stored
+ * in their page format (see {@link Field#serialize}), without record ids.
+ * <p>
+ * The file is deleted by {@link #delete}, or when the JVM exits.
+ */
+class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size;
+
+    SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        this.size = 0;
+    }
+
+    /** Appends a tuple. */
+    void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IOException("spill file is no longer open for writing");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        size++;
+    }
+
+    /** @return the number of tuples added */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finishes writing and returns an iterator over the tuples added. No more
+     * tuples can be added afterwards; the iterator can be opened and rewound
+     * any number of times.
+     */
+    OpIterator iterator() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Closes and removes the file. */
+    void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // being deleted anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class Reader implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private transient DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not open spill file " + file);
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < size;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("could not read spill file " + file);
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+                in = null;
+            }
+        }
+    }
+}
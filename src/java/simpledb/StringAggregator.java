@@ -96,4 +96,11 @@ public class StringAggregator implements Aggregator {
     	return new TupleIterator(td, agg_tups);
     }
 
+    /**
+     * Discards every group.
+     */
+    public void clear() {
+    	this.aggregated = new HashMap<Field, Integer>();
+    }
+
 }
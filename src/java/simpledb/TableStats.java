@@ -107,7 +107,7 @@ public class TableStats {
     	
     	this.table = Database.getCatalog().getDatabaseFile(tableid);
     	this.fields = this.table.getTupleDesc();
-    	this.num_pages = ((HeapFile) this.table).numPages();
+    	this.num_pages = num_file_pages(this.table);
     	this.tups_per_page = Database.getBufferPool().getPageSize();		
     	this.io_cost_per_page = ioCostPerPage;
     	
@@ -117,6 +117,12 @@ public class TableStats {
     	   	
     }
     
+    private static int num_file_pages(DbFile file) {
+    	if (file instanceof BTreeFile)
+    		return ((BTreeFile) file).numPages();
+    	return ((HeapFile) file).numPages();
+    }
+    
     private void set_histograms() {
     	int[] mins = new int[this.fields.numFields()];
     	int[] maxs = new int[this.fields.numFields()];
@@ -199,6 +205,27 @@ public class TableStats {
         return this.num_pages*this.io_cost_per_page;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that match a predicate on the
+     * key of this table's clustered B+ tree: one descent from the root, plus
+     * the leaf pages holding the fraction selectivityFactor of the table.
+     * Like estimateScanCost, every page read counts as one IO.
+     * 
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the index key
+     * @return The estimated cost of the index scan, or infinity if the table
+     *         is not a BTreeFile
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+    	if (!(this.table instanceof BTreeFile))
+    		return Double.POSITIVE_INFINITY;
+    	int key_len = this.fields.getFieldType(((BTreeFile) this.table).keyField()).getLen();
+    	int fanout = Math.max(2, BufferPool.getPageSize() / (key_len + BTreePage.INDEX_SIZE));
+    	double height = Math.ceil(Math.log(Math.max(this.num_pages, 2)) / Math.log(fanout));
+    	double leaves = Math.max(1.0, Math.ceil(selectivityFactor * this.num_pages));
+    	return (height + leaves) * this.io_cost_per_page;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -226,7 +253,22 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+    	double eq;
+    	if (this.fields.getFieldType(field) == Type.INT_TYPE)
+    		eq = this.int_hists.get(field).avgSelectivity();
+    	else
+    		eq = this.string_hists.get(field).avgSelectivity();
+    	switch (op) {
+    	case EQUALS:
+    		return eq;
+    	case NOT_EQUALS:
+    		return 1.0 - eq;
+    	case LIKE:
+    		return 1.0;
+    	default:
+    		// a range against a value from the table selects half of it on average
+    		return 0.5;
+    	}
     }
 
     /**
@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * TupleBatch holds up to a fixed number of tuples of one TupleDesc, column by
+ * column: INT fields in int arrays, other fields as Field objects. A
+ * selection vector lists the rows still in the batch, so a filter drops rows
+ * without moving any, and a projection shares its input's columns.
+ * <p>
+ * Rows are addressed in two ways: the i-th selected row (0 &lt;= i &lt;
+ * {@link #size()}), and the physical row {@link #row(int)} it is stored at,
+ * which indexes the column arrays.
+ */
+public class TupleBatch {
+
+    /** Number of rows in the batches operators make by default. */
+    public final static int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int[][] ints;
+    private final Field[][] fields;
+    private final RecordId[] rids;
+    private int rows;
+    /** physical rows selected, in order; null while every row is */
+    private int[] sel;
+    private int selected;
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param capacity
+     *            the number of rows the batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        int n = td.numFields();
+        this.ints = new int[n][];
+        this.fields = new Field[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                this.ints[i] = new int[capacity];
+            else
+                this.fields[i] = new Field[capacity];
+        }
+        this.rids = new RecordId[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, Field[][] fields, RecordId[] rids,
+            int rows, int[] sel, int selected) {
+        this.td = td;
+        this.ints = ints;
+        this.fields = fields;
+        this.rids = rids;
+        this.rows = rows;
+        this.sel = sel;
+        this.selected = selected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows the batch can hold */
+    public int capacity() {
+        return rids.length;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return sel == null ? rows : selected;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == rids.length;
+    }
+
+    /** @return the physical row of the i-th selected row */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /** @return true if field i is held in an int array */
+    public boolean isIntColumn(int i) {
+        return ints[i] != null;
+    }
+
+    /**
+     * @return the values of INT field i, by physical row (valid for the rows
+     *         added so far)
+     */
+    public int[] intColumn(int i) {
+        return ints[i];
+    }
+
+    /** @return field i of a physical row */
+    public Field getField(int i, int row) {
+        return ints[i] != null ? new IntField(ints[i][row]) : fields[i][row];
+    }
+
+    /** Appends a tuple. Rows cannot be added once some are deselected. */
+    public void add(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        if (sel != null)
+            throw new IllegalStateException("batch has a selection");
+        int r = rows++;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i][r] = ((IntField) t.getField(i)).getValue();
+            else
+                fields[i][r] = t.getField(i);
+        }
+        rids[r] = t.getRecordId();
+    }
+
+    /**
+     * Appends the concatenation of two tuples, the way joins build their
+     * output tuples, without making the joined Tuple.
+     */
+    public void add(Tuple left, Tuple right) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        if (sel != null)
+            throw new IllegalStateException("batch has a selection");
+        int r = rows++;
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < ints.length; i++) {
+            Field f = i < n1 ? left.getField(i) : right.getField(i - n1);
+            if (ints[i] != null)
+                ints[i][r] = ((IntField) f).getValue();
+            else
+                fields[i][r] = f;
+        }
+        rids[r] = null;
+    }
+
+    /**
+     * Appends a row whose fields are then set with {@link #setInt} and
+     * {@link #setField}.
+     *
+     * @return the physical row
+     */
+    int addRow(RecordId rid) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        if (sel != null)
+            throw new IllegalStateException("batch has a selection");
+        rids[rows] = rid;
+        return rows++;
+    }
+
+    void setInt(int i, int row, int value) {
+        ints[i][row] = value;
+    }
+
+    void setField(int i, int row, Field f) {
+        fields[i][row] = f;
+    }
+
+    /** @return the i-th selected row, as a new Tuple */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= size())
+            throw new NoSuchElementException();
+        int r = row(i);
+        Tuple t = new Tuple(td);
+        for (int f = 0; f < ints.length; f++)
+            t.setField(f, getField(f, r));
+        t.setRecordId(rids[r]);
+        return t;
+    }
+
+    /**
+     * Keeps only some of the selected rows.
+     *
+     * @param keep
+     *            physical rows to keep, a subsequence of the selected ones
+     * @param n
+     *            the number of entries of keep in use
+     */
+    public void select(int[] keep, int n) {
+        sel = keep;
+        selected = n;
+    }
+
+    /**
+     * Returns a batch of some of this batch's fields, sharing its columns and
+     * selection.
+     *
+     * @param fieldIds
+     *            the fields of this batch to keep, in output order
+     * @param outTd
+     *            the TupleDesc of the result
+     */
+    public TupleBatch project(int[] fieldIds, TupleDesc outTd) {
+        int[][] outInts = new int[fieldIds.length][];
+        Field[][] outFields = new Field[fieldIds.length][];
+        for (int i = 0; i < fieldIds.length; i++) {
+            outInts[i] = ints[fieldIds[i]];
+            outFields[i] = fields[fieldIds[i]];
+        }
+        return new TupleBatch(outTd, outInts, outFields, rids, rows, sel, selected);
+    }
+
+    /**
+     * Reads up to max tuples from an iterator by rows.
+     *
+     * @return the batch, or null if the iterator has no more tuples
+     */
+    public static TupleBatch fill(OpIterator it, int max)
+            throws DbException, TransactionAbortedException {
+        if (!it.hasNext())
+            return null;
+        // the tuples' own TupleDesc: some operators report a different one
+        Tuple t = it.next();
+        TupleBatch b = new TupleBatch(t.getTupleDesc(), max);
+        b.add(t);
+        while (!b.isFull() && it.hasNext())
+            b.add(it.next());
+        return b;
+    }
+
+    /**
+     * Reads the next batch of an iterator: through
+     * {@link BatchOpIterator#nextBatch()} if it has one, by rows otherwise.
+     *
+     * @return the batch, or null if the iterator has no more tuples
+     */
+    public static TupleBatch next(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        if (it instanceof BatchOpIterator)
+            return ((BatchOpIterator) it).nextBatch();
+        return fill(it, DEFAULT_SIZE);
+    }
+}
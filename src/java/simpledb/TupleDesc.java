@@ -162,13 +162,31 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-    	int tuple_size = 0;
-    	for (TDItem td : tup_desc) {
-    		tuple_size += td.fieldType.getLen();
+    	return this.offsets()[tup_desc.size()];
+    }
+
+    /**
+     * @return the offset (in bytes) of field i within a tuple of this
+     *         TupleDesc, as laid out by {@link Field#serialize}
+     */
+    public int getOffset(int i) {
+    	return this.offsets()[i];
+    }
+
+    /** byte offset of each field, then the tuple size; computed on first use */
+    private int[] offsets() {
+    	int[] o = this.field_offsets;
+    	if (o == null) {
+    		o = new int[tup_desc.size() + 1];
+    		for (int i = 0; i < tup_desc.size(); i++)
+    			o[i + 1] = o[i] + tup_desc.get(i).fieldType.getLen();
+    		this.field_offsets = o;
     	}
-        return tuple_size;
+    	return o;
     }
 
+    private transient int[] field_offsets;
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * 2Q replacement (Johnson and Shasha), an O(1) approximation of LRU-2.
+ * <p>
+ * Pages seen for the first time enter a FIFO queue (A1in). Only pages that
+ * are requested again after falling out of A1in -- remembered by id in a
+ * ghost queue (A1out) -- are promoted to the main LRU queue (Am). A large
+ * sequential scan therefore cycles through A1in and never displaces the hot
+ * pages (e.g. B+ tree internal pages) that live in Am.
+ * <p>
+ * Moving a page to the front of Am on a hit needs mutual exclusion, so every
+ * method synchronizes on the policy; prefer {@link ClockPolicy} when many
+ * threads hit the pool at once.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+	private final int max_in;
+	private final int max_out;
+	private LinkedHashSet<PageId> a1_in;
+	private LinkedHashSet<PageId> a1_out;
+	private LinkedHashSet<PageId> am;
+
+	/**
+	 * Uses the sizes suggested by the paper: A1in holds a quarter of the
+	 * pool, A1out remembers half a pool's worth of page ids.
+	 *
+	 * @param numPages number of pages in the buffer pool
+	 */
+	public TwoQueuePolicy(int numPages) {
+		this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+	}
+
+	/**
+	 * @param inPages target size of the A1in FIFO
+	 * @param outPages number of evicted page ids remembered in A1out
+	 */
+	public TwoQueuePolicy(int inPages, int outPages) {
+		this.max_in = inPages;
+		this.max_out = outPages;
+		this.a1_in = new LinkedHashSet<PageId>();
+		this.a1_out = new LinkedHashSet<PageId>();
+		this.am = new LinkedHashSet<PageId>();
+	}
+
+	public synchronized void pageLoaded(PageId pid) {
+		if (am.contains(pid) || a1_in.contains(pid)) {
+			pageAccessed(pid);
+			return;
+		}
+		if (a1_out.remove(pid))
+			am.add(pid);
+		else
+			a1_in.add(pid);
+	}
+
+	public synchronized void pageAccessed(PageId pid) {
+		// hits in A1in are treated as correlated references and ignored
+		if (am.remove(pid))
+			am.add(pid);
+	}
+
+	public synchronized void pageRemoved(PageId pid) {
+		a1_in.remove(pid);
+		am.remove(pid);
+	}
+
+	public synchronized PageId chooseVictim(VictimFilter filter) {
+		PageId victim = null;
+		if (a1_in.size() > max_in || am.isEmpty()) {
+			victim = first_evictable(a1_in, filter);
+			if (victim == null)
+				victim = first_evictable(am, filter);
+		} else {
+			victim = first_evictable(am, filter);
+			if (victim == null)
+				victim = first_evictable(a1_in, filter);
+		}
+		if (victim == null)
+			return null;
+		if (a1_in.remove(victim)) {
+			a1_out.add(victim);
+			if (a1_out.size() > max_out) {
+				Iterator<PageId> oldest = a1_out.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		} else {
+			am.remove(victim);
+		}
+		return victim;
+	}
+
+	private PageId first_evictable(LinkedHashSet<PageId> queue, VictimFilter filter) {
+		for (PageId pid : queue) {
+			if (filter.canEvict(pid))
+				return pid;
+		}
+		return null;
+	}
+}
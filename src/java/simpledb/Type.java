@@ -35,7 +35,7 @@ public enum Type implements Serializable {
             try {
                 int strLen = dis.readInt();
                 byte bs[] = new byte[strLen];
-                dis.read(bs);
+                dis.readFully(bs);
                 dis.skipBytes(STRING_LEN-strLen);
                 return new StringField(new String(bs), STRING_LEN);
             } catch (IOException e) {
@@ -121,6 +121,23 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(count, op);
   }
 
+  /**
+   * Unit test for Aggregate.close() followed by open() on a count aggregate
+   * with string types: the groups are counted afresh, not added to
+   */
+  @Test public void reopenStringAggregate() throws Exception {
+    Aggregate op = new Aggregate(scan2, 1, 0,
+        Aggregator.Op.COUNT);
+    op.open();
+    count.open();
+    TestUtil.matchAllTuples(count, op);
+    op.close();
+
+    op.open();
+    count.rewind();
+    TestUtil.matchAllTuples(count, op);
+  }
+
   /**
    * Unit test for Aggregate.getNext() using a count aggregate with string types
    */
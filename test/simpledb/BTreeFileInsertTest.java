@@ -172,6 +172,133 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	private static ArrayList<Tuple> keyedTuples(int n, int distinct) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < n; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {i % distinct, i}));
+		}
+		return tuples;
+	}
+
+	private static int countKey(BTreeFile bf, TransactionId tid, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(new IntField(key), it.next().getField(0));
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * Unit test for BTreeFile.bulkLoad(): a sorted load builds a valid multi-level
+	 * tree with every tuple in key order.
+	 */
+	@Test
+	public void testBulkLoadSorted() throws Exception {
+		BufferPool.setPageSize(256);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+
+		ArrayList<Tuple> tuples = keyedTuples(20000, 7000);
+		Collections.sort(tuples, new Comparator<Tuple>() {
+			public int compare(Tuple a, Tuple b) {
+				return ((IntField) a.getField(0)).getValue() - ((IntField) b.getField(0)).getValue();
+			}
+		});
+		OpIterator input = new TupleIterator(Utility.getTupleDesc(2), tuples);
+		assertEquals(20000, bf.bulkLoad(tid, input, 0.7, true));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertEquals(3, countKey(bf, tid, 42));
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while(it.hasNext()) {
+			Field key = it.next().getField(0);
+			assertTrue(prev == null || key.compare(Op.GREATER_THAN_OR_EQ, prev));
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(20000, count);
+
+		// a packed tree still takes inserts
+		bf.insertTuple(tid, BTreeUtility.getBTreeTuple(new int[] {42, -1}));
+		assertEquals(4, countKey(bf, tid, 42));
+	}
+
+	/**
+	 * Unit test for BTreeFile.bulkLoad(): loading unsorted input sorts it and
+	 * replaces the previous contents of the tree; unsorted input claimed to
+	 * be sorted is rejected.
+	 */
+	@Test
+	public void testBulkLoadReplaces() throws Exception {
+		BufferPool.setPageSize(256);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		TupleDesc td = Utility.getTupleDesc(2);
+
+		assertEquals(5000, bf.bulkLoad(tid, new TupleIterator(td, keyedTuples(5000, 5000)), 1.0, false));
+		assertEquals(300, bf.bulkLoad(tid, new TupleIterator(td, keyedTuples(300, 100)), 0.5, false));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(3, countKey(bf, tid, 99));
+		assertEquals(0, countKey(bf, tid, 100));
+
+		try {
+			bf.bulkLoad(tid, new TupleIterator(td, keyedTuples(10, 5)), 1.0, true);
+			fail("expected exception");
+		} catch(DbException e) {
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFile.bulkLoad(): loading empty input into a non-empty
+	 * tree leaves an empty tree with a real root leaf that takes inserts.
+	 */
+	@Test
+	public void testBulkLoadEmptyReplaces() throws Exception {
+		BufferPool.setPageSize(256);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		TupleDesc td = Utility.getTupleDesc(2);
+
+		assertEquals(2000, bf.bulkLoad(tid, new TupleIterator(td, keyedTuples(2000, 2000)), 1.0, false));
+		assertEquals(0, bf.bulkLoad(tid, new TupleIterator(td, new ArrayList<Tuple>()), 1.0, true));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreePageId rootId = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		assertNotNull(rootId);
+		assertEquals(BTreePageId.LEAF, rootId.pgcateg());
+		assertEquals(0, countKey(bf, tid, 7));
+
+		for(int i = 0; i < 500; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(),
+					BTreeUtility.getBTreeTuple(new int[] {i % 50, i}));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(10, countKey(bf, tid, 7));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
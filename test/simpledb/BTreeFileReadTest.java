@@ -130,6 +130,52 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		it.close();
 	}
 
+	/**
+	 * Unit test for BTreeFile.findLeafPage(): the descent only keeps the lock
+	 * on the leaf, and a lock the transaction already held on an internal page
+	 * is not given up.
+	 */
+	@Test public void findLeafPageReleasesInternalLocks() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		BTreePageId rootId = twoLeafPageFile.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		BTreeLeafPage leaf = twoLeafPageFile.findLeafPage(tid, rootId, Permissions.READ_ONLY, new IntField(5));
+		assertTrue(Database.getBufferPool().holdsLock(tid, leaf.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		assertTrue(leaf.iterator().next().getField(0).compare(Op.LESS_THAN_OR_EQ, new IntField(5)));
+
+		Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
+		BTreeLeafPage right = twoLeafPageFile.findLeafPage(tid, rootId, Permissions.READ_WRITE, new IntField(600));
+		assertFalse(right.getId().equals(leaf.getId()));
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, right.getId()));
+	}
+
+	/**
+	 * Unit test for BTreeFile.findLeafPage() with READ_WRITE: the lock on the
+	 * parent is kept only if the leaf is full and may have to split
+	 */
+	@Test public void findLeafPageKeepsParentOfFullLeaf() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		// 520 tuples leave room in both leaves, 1004 fill them
+		for (int rows : new int[] { 520, 1004 }) {
+			BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, rows,
+					null, null, 0);
+			tid = new TransactionId();
+			HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+			BTreePageId rootId = twoLeafPageFile.getRootPtrPage(tid, dirtypages).getRootId();
+			BTreeLeafPage leaf = twoLeafPageFile.findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, new IntField(5));
+			boolean full = rows == 1004;
+			assertEquals(full, leaf.getNumEmptySlots() == 0);
+			assertEquals(full, Database.getBufferPool().holdsLock(tid, rootId));
+			assertEquals(full, dirtypages.containsKey(rootId));
+			assertTrue(dirtypages.containsKey(leaf.getId()));
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
 	/**
 	 * Unit test for BTreeFile.indexIterator()
 	 */
@@ -166,6 +166,46 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty
+	 * slots between its entries
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every other entry, leaving a gap before each remaining one
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> deleted = new ArrayList<BTreeEntry>();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 2 == 1)
+				deleted.add(e);
+		}
+		for (BTreeEntry e : deleted)
+			page.deleteKeyAndRightChild(e);
+
+		LinkedList<BTreeEntry> entries = new LinkedList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.addFirst(it.next());
+
+		it = page.reverseIterator();
+		for (BTreeEntry expected : entries) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+
+		// the last entry found by the reverse iterator can be rotated away
+		page.deleteKeyAndRightChild(page.reverseIterator().next());
+		entries.removeFirst();
+		assertEquals(entries.getFirst().getKey(), page.reverseIterator().next().getKey());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
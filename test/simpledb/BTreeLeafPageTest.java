@@ -336,6 +336,29 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.getBeforeImage(): the page as read until
+	 * setBeforeImage(), then the page as it was at that call
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		int free = page.getNumEmptySlots();
+		Tuple first = page.iterator().next();
+		page.deleteTuple(first);
+		assertEquals(free, page.getBeforeImage().getNumEmptySlots());
+		assertEquals(free + 1, page.getNumEmptySlots());
+
+		page.setBeforeImage();
+		assertEquals(free + 1, page.getBeforeImage().getNumEmptySlots());
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 1, 2 }));
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 3, 4 }));
+		page.setRightSiblingId(new BTreePageId(pid.getTableId(), 9, BTreePageId.LEAF));
+		BTreeLeafPage before = page.getBeforeImage();
+		assertEquals(free + 1, before.getNumEmptySlots());
+		assertEquals(null, before.getRightSiblingId());
+		assertEquals(free - 1, page.getNumEmptySlots());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
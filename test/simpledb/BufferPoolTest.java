@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    private TransactionId tid;
+    private CountingHeapFile file;
+
+    // counts the reads of each page, and can hold up the read of one page
+    // so that its frame stays pinned
+    class CountingHeapFile extends HeapFile {
+        final AtomicInteger[] reads = new AtomicInteger[PAGES];
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        volatile int blockOn = -1;
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+            for (int i = 0; i < PAGES; i++)
+                reads[i] = new AtomicInteger(0);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads[pid.getPageNumber()].incrementAndGet();
+            if (pid.getPageNumber() == blockOn) {
+                loading.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+
+        int totalReads() {
+            int n = 0;
+            for (AtomicInteger r : reads)
+                n += r.get();
+            return n;
+        }
+    }
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES,
+                1000, null, null);
+        file = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        assertEquals(PAGES, file.numPages());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(file.getId(), pgNo);
+    }
+
+    /**
+     * Unit test for BufferPool.getPage() called from several threads on a
+     * pool much smaller than the file: every call returns the page asked
+     * for, and the requests are a mix of hits and misses
+     */
+    @Test public void concurrentGetPage() throws Exception {
+        Database.resetBufferPool(5);
+        final int requests = 500;
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final long seed = i;
+            threads.add(new Thread() {
+                public void run() {
+                    TransactionId t = new TransactionId();
+                    Random r = new Random(seed);
+                    try {
+                        for (int j = 0; j < requests; j++) {
+                            HeapPageId want = pid(r.nextInt(PAGES));
+                            Page p = Database.getBufferPool().getPage(t, want, Permissions.READ_ONLY);
+                            if (!want.equals(p.getId()))
+                                throw new AssertionError("asked for " + want + ", got " + p.getId());
+                        }
+                        Database.getBufferPool().transactionComplete(t);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(file.totalReads() > PAGES);
+        assertTrue(file.totalReads() < threads.size() * requests);
+    }
+
+    /**
+     * Unit test for BufferPool eviction: a frame pinned by a getPage() that
+     * is still reading its page is never chosen, however many other pages
+     * go through the pool meanwhile
+     */
+    @Test public void pinnedFrameNotEvicted() throws Exception {
+        Database.resetBufferPool(2);
+        file.blockOn = 0;
+        final Page[] got = new Page[1];
+        Thread reader = new Thread() {
+            public void run() {
+                TransactionId t = new TransactionId();
+                try {
+                    got[0] = Database.getBufferPool().getPage(t, pid(0), Permissions.READ_ONLY);
+                    Database.getBufferPool().transactionComplete(t);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        file.loading.await();
+
+        for (int i = 1; i < PAGES; i++)
+            assertEquals(pid(i), Database.getBufferPool().getPage(tid, pid(i), Permissions.READ_ONLY).getId());
+        file.resume.countDown();
+        reader.join();
+
+        assertEquals(pid(0), got[0].getId());
+        assertSame(got[0], Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_ONLY));
+        assertEquals(1, file.reads[0].get());
+    }
+
+    /**
+     * Unit test for BufferPool eviction: a dirty page stays cached while
+     * clean pages are evicted around it, and a pool holding only dirty pages
+     * refuses to load another page rather than evict one
+     */
+    @Test public void dirtyPageNotEvicted() throws Exception {
+        Database.resetBufferPool(2);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, p.iterator().next());
+        // the delete also builds the file's free space map from disk
+        int reads = file.reads[0].get();
+
+        for (int i = 1; i < PAGES; i++)
+            Database.getBufferPool().getPage(tid, pid(i), Permissions.READ_ONLY);
+        p = (HeapPage) Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(tid, p.isDirty());
+        assertEquals(1, p.getNumEmptySlots());
+        assertEquals(reads, file.reads[0].get());
+
+        HeapPage q = (HeapPage) Database.getBufferPool().getPage(tid, pid(1), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, q.iterator().next());
+        try {
+            Database.getBufferPool().getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected exception");
+        } catch (DbException e) {
+            // expected: both pages are dirty
+        }
+        assertEquals(tid, Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_ONLY).isDirty());
+        assertEquals(tid, Database.getBufferPool().getPage(tid, pid(1), Permissions.READ_ONLY).isDirty());
+    }
+
+    /**
+     * Unit test for BufferPool.transactionComplete(tid, false): a page that
+     * was changed in place but not yet handed back (and so is not dirty) is
+     * still rolled back, because the transaction holds its exclusive lock
+     */
+    @Test public void abortRollsBackUndirtiedPage() throws Exception {
+        TransactionId t = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t, pid(0), Permissions.READ_WRITE);
+        int empty = p.getNumEmptySlots();
+        p.deleteTuple(p.iterator().next());
+        assertNull(p.isDirty());
+
+        Database.getBufferPool().transactionComplete(t, false);
+        p = (HeapPage) Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(empty, p.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
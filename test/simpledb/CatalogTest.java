@@ -1,7 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +97,53 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for Catalog.loadSchema(): a field annotated btree makes the
+     * table a BTreeFile keyed on it, which can then be written and read
+     * through the buffer pool like any other table; a table marked slotted is
+     * a HeapFile of SlottedHeapPages.
+     */
+    @Test public void loadSchemaBTree() throws Exception {
+        File dir = File.createTempFile("catalog", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "schema.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("clustered (v int, id int pk btree)\nplain (a int, b string)\nshort (a int, b string) slotted\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        new File(dir, "clustered.dat").deleteOnExit();
+        new File(dir, "plain.dat").deleteOnExit();
+        new File(dir, "short.dat").deleteOnExit();
+
+        DbFile plain = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("plain"));
+        assertTrue(plain instanceof HeapFile);
+        assertFalse(((HeapFile) plain).isSlotted());
+        DbFile slotted = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("short"));
+        assertTrue(((HeapFile) slotted).isSlotted());
+        int tableId = Database.getCatalog().getTableId("clustered");
+        DbFile clustered = Database.getCatalog().getDatabaseFile(tableId);
+        assertTrue(clustered instanceof BTreeFile);
+        assertEquals(1, ((BTreeFile) clustered).keyField());
+        assertEquals("id", Database.getCatalog().getPrimaryKey(tableId));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 10; i > 0; i--)
+            Database.getBufferPool().insertTuple(tid, tableId, BTreeUtility.getBTreeTuple(new int[] {-i, i}));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        DbFileIterator it = clustered.iterator(tid);
+        it.open();
+        for (int i = 1; i <= 10; i++)
+            assertEquals(new IntField(i), it.next().getField(1));
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * JUnit suite target
      */
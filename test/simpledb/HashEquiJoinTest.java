@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  /** width-2 tuples whose first field is key(i) and second is i */
+  private static TupleIterator tuples(int n, int modulus) {
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = i % modulus;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private static ArrayList<String> results(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  private static ArrayList<String> expected(OpIterator left, OpIterator right) throws Exception {
+    Join nl = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    nl.open();
+    ArrayList<String> out = results(nl);
+    nl.close();
+    return out;
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when the left child fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    ArrayList<String> want = expected(tuples(300, 40), tuples(200, 60));
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        tuples(300, 40), tuples(200, 60));
+    op.open();
+    assertEquals(want, results(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when partitions are spilled to disk,
+   * and for rewind() afterwards
+   */
+  @Test public void spilled() throws Exception {
+    ArrayList<String> want = expected(tuples(2000, 700), tuples(1500, 900));
+    assertTrue(want.size() > 0);
+    // room for a fraction of one partition: every level spills
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        tuples(2000, 700), tuples(1500, 900), 25);
+    op.open();
+    assertEquals(want, results(op));
+    op.rewind();
+    assertEquals(want, results(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() with a key too frequent to fit in
+   * memory, which no amount of repartitioning splits
+   */
+  @Test public void skewed() throws Exception {
+    ArrayList<String> want = expected(tuples(500, 3), tuples(40, 5));
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        tuples(500, 3), tuples(40, 5), 30);
+    op.open();
+    assertEquals(want, results(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
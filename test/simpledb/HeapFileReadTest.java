@@ -77,6 +77,65 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including a
+     * page appended after the file was mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        assertArrayEquals(expected, hf.readPage(pid).getPageData());
+
+        HeapPageId newPid = new HeapPageId(hf.getId(), 1);
+        HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
+        newPage.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(newPage);
+        assertEquals(2, hf.numPages());
+        assertArrayEquals(newPage.getPageData(), hf.readPage(newPid).getPageData());
+
+        hf.setMemoryMapped(false);
+        assertFalse(hf.isMemoryMapped());
+    }
+
+    /**
+     * Unit test for HeapFile.iterator() read-ahead: the page after the one
+     * being scanned is loaded in the background, and a window of 0 turns
+     * read-ahead off.
+     */
+    @Test
+    public void readAhead() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(bigFile.numPages() > 2);
+        BufferPool bp = Database.getBufferPool();
+
+        DbFileIterator it = bigFile.iterator(tid, 0);
+        it.open();
+        it.next();
+        Thread.sleep(100);
+        assertEquals(0, bp.getPagesPrefetched());
+        it.close();
+
+        it = bigFile.iterator(tid, 4);
+        it.open();
+        it.next();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getPagesPrefetched() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, bp.getPagesPrefetched());
+
+        int count = 1;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(2000, count);
+        it.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FilenameFilter;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -44,6 +47,80 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple(): full pages are skipped without
+     * keeping a lock on them, and a page with a deleted tuple is reused
+     * before the file grows.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 3 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // page 1 gets a free slot
+        tid = new TransactionId();
+        HeapPageId pid1 = new HeapPageId(empty.getId(), 1);
+        HeapPage page1 = (HeapPage) Database.getBufferPool().getPage(tid, pid1, Permissions.READ_ONLY);
+        empty.deleteTuple(tid, page1.iterator().next());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        Page p = empty.insertTuple(tid, Utility.getHeapTuple(7, 2)).get(0);
+        assertEquals(pid1, p.getId());
+        assertEquals(3, empty.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 2)));
+
+        // every page is full again, so the next insert appends
+        p = empty.insertTuple(tid, Utility.getHeapTuple(8, 2)).get(0);
+        assertEquals(3, p.getId().getPageNumber());
+        assertEquals(4, empty.numPages());
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.build(): a new HeapFile over an existing
+     * file finds the free pages by reading the file, and leaves no file of
+     * its own next to it.
+     */
+    @Test public void freeSpaceMapBuiltFromFile() throws Exception {
+        for (int i = 0; i < 2 * 504 + 1; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        FreeSpaceMap fsm = FreeSpaceMap.build(reopened);
+        assertFalse(fsm.is_free(0));
+        assertFalse(fsm.is_free(1));
+        assertTrue(fsm.is_free(2));
+        assertEquals(2, fsm.find(reopened.numPages()));
+        assertEquals(1, empty.getFile().getParentFile().list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(empty.getFile().getName());
+            }
+        }).length);
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): a page whose filling insert was
+     * aborted is used again instead of growing the file.
+     */
+    @Test public void abortedFillFreesPage() throws Exception {
+        for (int i = 0; i < 503; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(503, 2));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Page p = empty.insertTuple(tid, Utility.getHeapTuple(503, 2)).get(0);
+        assertEquals(0, p.getId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,36 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getField(), which decodes one field of a slot
+     */
+    @Test public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; i++) {
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+            assertEquals(new IntField(EXAMPLE_VALUES[i][0]), page.getField(i, 0));
+        }
+    }
+
+    /**
+     * Unit test for HeapPage.fillBatch(), across batches smaller than the page
+     */
+    @Test public void fillBatch() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        int row = 0;
+        int slot = 0;
+        while (slot < 504) {
+            TupleBatch b = new TupleBatch(Utility.getTupleDesc(2), 8);
+            slot = page.fillBatch(b, slot);
+            for (int i = 0; i < b.size(); i++, row++) {
+                assertEquals(EXAMPLE_VALUES[row][0], b.intColumn(0)[b.row(i)]);
+                assertEquals(EXAMPLE_VALUES[row][1], b.intColumn(1)[b.row(i)]);
+                assertEquals(new RecordId(pid, row), b.getTuple(i).getRecordId());
+            }
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+    }
+
     /**
      * JUnit suite target
      */
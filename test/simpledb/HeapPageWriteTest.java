@@ -1,9 +1,11 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,92 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() after inserts and deletes: the
+     * page read back from it has the same tuples, and the data the page was
+     * made from is left alone
+     */
+    @Test public void pageDataAfterWrites() throws Exception {
+        byte[] before = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple second = page.getTuple(1);
+        page.deleteTuple(second);
+        Tuple added = Utility.getHeapTuple(new int[] { 7, 11 });
+        page.insertTuple(added);
+        assertEquals(new RecordId(pid, 1), added.getRecordId());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 13, 17 }));
+        assertArrayEquals(before, HeapPageReadTest.EXAMPLE_DATA);
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> it = page.iterator();
+        Iterator<Tuple> copyIt = copy.iterator();
+        while (it.hasNext()) {
+            assertTrue(copyIt.hasNext());
+            assertTrue(TestUtil.compareTuples(it.next(), copyIt.next()));
+        }
+        assertTrue(!copyIt.hasNext());
+        assertEquals(new IntField(11), copy.getField(1, 1));
+        assertEquals(new IntField(17), copy.getField(HeapPageReadTest.EXAMPLE_VALUES.length, 1));
+    }
+
+    /**
+     * Unit test for HeapPage.writeTo(): the bytes of getPageData(), at the
+     * buffer's position
+     */
+    @Test public void writeTo() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.deleteTuple(page.getTuple(2));
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 11 }));
+        page.insertTuple(Utility.getHeapTuple(new int[] { 13, 17 }));
+
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize() + 3);
+        buf.put(new byte[] { 1, 2, 3 });
+        page.writeTo(buf);
+        assertEquals(0, buf.remaining());
+        byte[] written = new byte[BufferPool.getPageSize()];
+        System.arraycopy(buf.array(), 3, written, 0, written.length);
+        assertArrayEquals(page.getPageData(), written);
+        assertEquals(new IntField(17), new HeapPage(pid, written).getField(HeapPageReadTest.EXAMPLE_VALUES.length, 1));
+    }
+
+    /**
+     * Unit test for HeapPage.iterator() skipping a slot emptied in the middle
+     * of the page
+     */
+    @Test public void iteratorSkipsEmptySlots() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.deleteTuple(page.getTuple(3));
+        Iterator<Tuple> it = page.iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertTrue(t.getRecordId().getTupleNumber() != 3);
+            n++;
+        }
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES.length - 1, n);
+    }
+
+    /**
+     * Unit test for HeapPage.getBeforeImage(): the page as read until
+     * setBeforeImage(), then the page as it was at that call
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.deleteTuple(page.getTuple(0));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 11 }));
+        page.deleteTuple(page.getTuple(1));
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertEquals(page.getNumEmptySlots(), page.getBeforeImage().getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
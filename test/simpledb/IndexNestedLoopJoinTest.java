@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+  private static final int ROWS = 2000;
+
+  private BTreeFile bf;
+  private TransactionId tid;
+  private OpIterator outer;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // keys 1..ROWS, second field twice the key
+    bf = BTreeUtility.createBTreeFile(2, ROWS, null, null, 0);
+    Database.getCatalog().addTable(bf, "bt");
+    tid = new TransactionId();
+    outer = TestUtil.createTupleList(2, new int[] { 5, 0, 17, 1, 1999, 2, 2500, 3, 17, 4 });
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static ArrayList<String> results(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    op.close();
+    Collections.sort(out);
+    return out;
+  }
+
+  /** Joins outer with bt, through the index and by nested loops */
+  private void check(Op op, boolean filtered) throws Exception {
+    JoinPredicate p = new JoinPredicate(0, op, 0);
+    BTreeScan probe = new BTreeScan(tid, bf.getId(), "t", null);
+    OpIterator inner = probe;
+    OpIterator scan = new SeqScan(tid, bf.getId(), "t");
+    if (filtered) {
+      Predicate small = new Predicate(1, Op.LESS_THAN, new IntField(100));
+      inner = new Filter(small, inner);
+      scan = new Filter(small, scan);
+    }
+    ArrayList<String> got = results(new IndexNestedLoopJoin(p, outer, inner, probe));
+    ArrayList<String> want = results(new Join(p, outer, scan));
+    assertTrue(want.size() > 0);
+    assertEquals(want, got);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    check(Op.EQUALS, false);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using a &gt; predicate, with
+   * a filter between the join and the index scan
+   */
+  @Test public void gtJoinFiltered() throws Exception {
+    check(Op.GREATER_THAN, true);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Op.LESS_THAN_OR_EQ, 0);
+    BTreeScan probe = new BTreeScan(tid, bf.getId(), "t", null);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(p, outer, probe, probe);
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    op.rewind();
+    int m = 0;
+    while (op.hasNext()) {
+      op.next();
+      m++;
+    }
+    op.close();
+    assertEquals(n, m);
+    assertEquals((ROWS - 5 + 1) + 2 * (ROWS - 17 + 1) + (ROWS - 1999 + 1), n);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -1,7 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
 
 import junit.framework.JUnit4TestAdapter;
@@ -178,6 +183,97 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.iterator() when there are more groups than the
+   * aggregator may hold in memory, for every operator, and rewind()
+   */
+  @Test public void spilledGroups() throws Exception {
+    int n = 20000;
+    int[] data = new int[2 * n];
+    HashMap<Integer, ArrayList<Integer>> groups = new HashMap<Integer, ArrayList<Integer>>();
+    for (int i = 0; i < n; i++) {
+      int key = (int) ((i * 7919L) % 3001) - 1500;
+      int value = (i * 31) % 1000 - 300;
+      data[2 * i] = key;
+      data[2 * i + 1] = value;
+      if (!groups.containsKey(key))
+        groups.put(key, new ArrayList<Integer>());
+      groups.get(key).add(value);
+    }
+
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      ArrayList<String> want = new ArrayList<String>();
+      for (Integer key : groups.keySet()) {
+        ArrayList<Integer> values = groups.get(key);
+        int sum = 0;
+        for (int v : values)
+          sum += v;
+        int result = op == Aggregator.Op.MIN ? Collections.min(values)
+            : op == Aggregator.Op.MAX ? Collections.max(values)
+            : op == Aggregator.Op.SUM ? sum
+            : op == Aggregator.Op.AVG ? sum / values.size()
+            : values.size();
+        want.add(key + "\t" + result);
+      }
+      Collections.sort(want);
+
+      OpIterator input = TestUtil.createTupleList(width1, data);
+      input.open();
+      // room for a fraction of one partition: groups spill on several levels
+      IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, op, 40);
+      while (input.hasNext())
+        agg.mergeTupleIntoGroup(input.next());
+      OpIterator it = agg.iterator();
+      it.open();
+      for (int pass = 0; pass < 2; pass++) {
+        ArrayList<String> got = new ArrayList<String>();
+        while (it.hasNext())
+          got.add(it.next().toString());
+        Collections.sort(got);
+        assertEquals(want, got);
+        it.rewind();
+      }
+      it.close();
+      agg.clear();
+    }
+  }
+
+  /**
+   * Test IntegerAggregator.iterator() over spilled groups: once it is
+   * exhausted, hasNext() keeps returning false and next() throws
+   */
+  @Test public void spilledIteratorExhausted() throws Exception {
+    int[] data = new int[2 * 100];
+    for (int i = 0; i < 100; i++) {
+      data[2 * i] = i;
+      data[2 * i + 1] = i;
+    }
+    OpIterator input = TestUtil.createTupleList(width1, data);
+    input.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM, 10);
+    while (input.hasNext())
+      agg.mergeTupleIntoGroup(input.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    assertEquals(100, count);
+    assertFalse(it.hasNext());
+    assertFalse(it.hasNext());
+    try {
+      it.next();
+      fail("expected exception");
+    } catch (NoSuchElementException e) {
+      // explicitly ignored
+    }
+    it.close();
+    agg.clear();
+  }
+
   /**
    * JUnit suite target
    */
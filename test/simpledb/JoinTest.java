@@ -105,6 +105,35 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() and Join.rewind() when the left child spans
+   * several blocks, and when it is read one tuple at a time
+   */
+  @Test public void blockJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    // pages of two width1 tuples: the left child takes two blocks
+    BufferPool.setPageSize(24);
+    try {
+      assertEquals(2, Join.blockTuples(scan1.getTupleDesc(), 1));
+      Join op = new Join(pred, scan1, scan2, 1);
+      op.open();
+      gtJoin.open();
+      TestUtil.matchAllTuples(gtJoin, op);
+      op.rewind();
+      gtJoin.rewind();
+      TestUtil.matchAllTuples(gtJoin, op);
+      op.close();
+    } finally {
+      BufferPool.resetPageSize();
+    }
+
+    Join op = new Join(pred, scan1, scan2, 0);
+    assertEquals(0, op.getBlockPages());
+    op.open();
+    gtJoin.rewind();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private File f;
+    private RandomAccessFile raf;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("logbuffer", ".log");
+        f.deleteOnExit();
+        raf = new RandomAccessFile(f, "rw");
+        raf.writeLong(-1);
+    }
+
+    @After public void tearDown() throws Exception {
+        raf.close();
+    }
+
+    private byte[] fileBytes(long from) throws Exception {
+        byte[] out = new byte[(int) (raf.length() - from)];
+        raf.seek(from);
+        raf.readFully(out);
+        return out;
+    }
+
+    /**
+     * Unit test for LogBuffer.append(): LSNs are assigned in append order
+     * and records that span buffers reach the file intact once drained.
+     */
+    @Test public void appendSpansBuffers() throws Exception {
+        LogBuffer buffer = new LogBuffer(raf.getChannel(), 8, 2, 16);
+        byte[] expected = new byte[100];
+        for (int i = 0; i < 10; i++) {
+            byte[] rec = new byte[10];
+            Arrays.fill(rec, (byte) i);
+            System.arraycopy(rec, 0, expected, i * 10, 10);
+            assertEquals(8 + i * 10, buffer.append(rec, rec.length));
+        }
+        assertEquals(108, buffer.drain());
+        assertArrayEquals(expected, fileBytes(8));
+        buffer.close();
+    }
+
+    /**
+     * Unit test for LogBuffer.append() from several threads: every record
+     * lands at the LSN it was given.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        final int THREADS = 4;
+        final int RECORDS = 200;
+        final LogBuffer buffer = new LogBuffer(raf.getChannel(), 8, 3, 64);
+        final long[][] lsns = new long[THREADS][RECORDS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < RECORDS; i++) {
+                            byte[] rec = ByteBuffer.allocate(8).putInt(id).putInt(i).array();
+                            lsns[id][i] = buffer.append(rec, rec.length);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread th : threads)
+            th.join();
+        buffer.close();
+
+        assertEquals(8 + THREADS * RECORDS * 8, raf.length());
+        ByteBuffer log = ByteBuffer.wrap(fileBytes(0));
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < RECORDS; i++) {
+                int pos = (int) lsns[t][i];
+                assertEquals(t, log.getInt(pos));
+                assertEquals(i, log.getInt(pos + 4));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+    private static final int ROWS = 10000;
+
+    private BTreeFile bf;
+    private HeapFile small;
+    private HeapFile medium;
+    private ArrayList<ArrayList<Integer>> smallTuples;
+    private String tableName;
+    private HashMap<String, TableStats> stats;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        BTreeFile unnamed = BTreeUtility.createBTreeFile(2, ROWS, null, null, 0);
+        // the same file, with field names the parser can refer to
+        bf = new BTreeFile(unnamed.getFile(), 0, Utility.getTupleDesc(2, "f"));
+        tableName = "bt";
+        Database.getCatalog().addTable(bf, tableName);
+        stats = new HashMap<String, TableStats>();
+        stats.put(tableName, new TableStats(bf.getId(), 1000));
+
+        smallTuples = new ArrayList<ArrayList<Integer>>();
+        small = SystemTestUtil.createRandomHeapFile(2, 5, 2 * ROWS, null, smallTuples, "f");
+        Database.getCatalog().addTable(small, "small");
+        stats.put("small", new TableStats(small.getId(), 1000));
+        medium = SystemTestUtil.createRandomHeapFile(2, 1000, 2 * ROWS, null, null, "f");
+        Database.getCatalog().addTable(medium, "medium");
+        stats.put("medium", new TableStats(medium.getId(), 1000));
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private OpIterator plan(String field, Op op, String constant) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "t");
+        lp.addFilter("t." + field, op, constant);
+        lp.addProjectField("*", null);
+        // skip the Project at the top
+        return ((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0];
+    }
+
+    /** @return the join at the top of the plan for s join t on s.f0 op t.f0 */
+    private OpIterator joinPlan(int t1, int t2, Op op) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(t1, "s");
+        lp.addScan(t2, "t");
+        lp.addJoin("s.f0", "t.f0", op);
+        lp.addProjectField("*", null);
+        return ((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0];
+    }
+
+    private int count(OpIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Unit test for LogicalPlan.physicalPlan(): a selective filter on the key
+     * of a B+ tree table becomes a BTreeScan with no Filter above it.
+     */
+    @Test public void selectiveKeyFilterUsesIndex() throws Exception {
+        OpIterator op = plan("f0", Op.EQUALS, "42");
+        assertTrue(op instanceof BTreeScan);
+        assertEquals(Op.EQUALS, ((BTreeScan) op).getIndexPredicate().getOp());
+        assertEquals(1, count(op));
+
+        op = plan("f0", Op.LESS_THAN, "11");
+        assertTrue(op instanceof BTreeScan);
+        assertEquals(10, count(op));
+    }
+
+    /**
+     * Unit test for LogicalPlan.physicalPlan(): filters that are not on the
+     * key, or that select most of the table, keep the sequential scan.
+     */
+    @Test public void otherFiltersUseSeqScan() throws Exception {
+        OpIterator op = plan("f1", Op.EQUALS, "42");
+        assertTrue(op instanceof Filter);
+        assertTrue(((Filter) op).getChildren()[0] instanceof SeqScan);
+
+        op = plan("f0", Op.GREATER_THAN, "0");
+        assertTrue(op instanceof Filter);
+        assertTrue(((Filter) op).getChildren()[0] instanceof SeqScan);
+        assertEquals(ROWS, count(op));
+    }
+
+    /**
+     * Unit test for LogicalPlan.physicalPlan(): a few outer tuples joined on
+     * the key of a large B+ tree table are looked up through the index.
+     */
+    @Test public void smallOuterUsesIndexJoin() throws Exception {
+        OpIterator op = joinPlan(small.getId(), bf.getId(), Op.EQUALS);
+        assertTrue(op instanceof IndexNestedLoopJoin);
+        int expected = 0;
+        for (ArrayList<Integer> t : smallTuples) {
+            if (t.get(0) >= 1 && t.get(0) <= ROWS)
+                expected++;
+        }
+        assertEquals(expected, count(op));
+    }
+
+    /**
+     * Unit test for LogicalPlan.physicalPlan(): equi-joins without a usable
+     * index become hash joins, other joins block nested loops.
+     */
+    @Test public void joinAlgorithmByPredicate() throws Exception {
+        OpIterator op = joinPlan(medium.getId(), small.getId(), Op.EQUALS);
+        assertTrue(op instanceof HashEquiJoin);
+        OpIterator nl = joinPlan(medium.getId(), small.getId(), Op.LESS_THAN);
+        assertTrue(nl instanceof Join);
+        assertTrue(((Join) nl).getBlockPages() > 0);
+        assertEquals(count(new Join(new JoinPredicate(0, Op.EQUALS, 0),
+                new SeqScan(tid, medium.getId(), "s"), new SeqScan(tid, small.getId(), "t"))),
+                count(op));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
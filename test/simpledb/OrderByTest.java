@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /** width-2 tuples whose first field is a scrambled key and second is i */
+  private static TupleIterator tuples(int n) {
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = (int) ((i * 7919L) % 1000);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /** The first fields of tuples(n), ordered, as a stable sort orders them */
+  private static List<String> expected(int n, boolean asc, int limit) throws Exception {
+    OpIterator child = tuples(n);
+    ArrayList<Tuple> all = new ArrayList<Tuple>();
+    child.open();
+    while (child.hasNext())
+      all.add(child.next());
+    child.close();
+    Collections.sort(all, new TupleComparator(0, asc));
+    ArrayList<String> out = new ArrayList<String>();
+    for (Tuple t : all)
+      out.add(t.toString());
+    return limit == OrderBy.NO_LIMIT ? out : out.subList(0, Math.min(limit, n));
+  }
+
+  private static ArrayList<String> results(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    return out;
+  }
+
+  private static void check(int n, boolean asc, int limit, int maxTuples) throws Exception {
+    List<String> want = expected(n, asc, limit);
+    OrderBy op = new OrderBy(0, asc, tuples(n), limit, maxTuples);
+    op.open();
+    assertEquals(want, results(op));
+    op.rewind();
+    assertEquals(want, results(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() when the child fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    check(500, true, OrderBy.NO_LIMIT, 1000);
+    check(500, false, OrderBy.NO_LIMIT, 1000);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() and OrderBy.rewind() when sorted runs are
+   * written to disk, with one merge pass and with several
+   */
+  @Test public void external() throws Exception {
+    check(2000, true, OrderBy.NO_LIMIT, 100);
+    check(5000, false, OrderBy.NO_LIMIT, 20);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() with a limit, within the memory budget
+   * and beyond it
+   */
+  @Test public void topN() throws Exception {
+    check(2000, true, 10, 100);
+    check(2000, false, 0, 100);
+    check(2000, true, 250, 100);
+    check(30, true, 100, 100);
+  }
+
+  /**
+   * Unit test for OrderBy.open() after close(): the tuples of the first open
+   * are not returned again
+   */
+  @Test public void reopen() throws Exception {
+    OrderBy op = new OrderBy(0, true, tuples(300), OrderBy.NO_LIMIT, 50);
+    op.open();
+    assertEquals(300, results(op).size());
+    op.close();
+    op.open();
+    assertEquals(expected(300, true, OrderBy.NO_LIMIT), results(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,277 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageLockerTest extends SimpleDbTestBase {
+
+    /** Long enough that no test should ever hit it. */
+    private static final long LONG_WAIT = 10000;
+
+    private PageLocker locker;
+    private PageId p0;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() {
+        locker = new PageLocker();
+        p0 = new HeapPageId(1, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /** Acquires a lock on another thread and records whether it got it. */
+    private static class Waiter extends Thread {
+        final PageLocker locker;
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        final long timeout;
+        volatile boolean acquired = false;
+
+        Waiter(PageLocker locker, TransactionId tid, PageId pid, Permissions perm, long timeout) {
+            this.locker = locker;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            this.timeout = timeout;
+        }
+
+        public void run() {
+            acquired = locker.acquire_lock(tid, pid, perm, timeout);
+        }
+    }
+
+    private Waiter startWaiter(TransactionId tid, Permissions perm, long timeout) throws InterruptedException {
+        Waiter w = new Waiter(locker, tid, p0, perm, timeout);
+        w.start();
+        // give it time to enqueue
+        Thread.sleep(50);
+        return w;
+    }
+
+    /**
+     * Unit test for PageLocker.acquire_lock(): releasing a lock wakes the
+     * waiter immediately rather than after a polling interval or timeout.
+     */
+    @Test public void releaseWakesWaiter() throws Exception {
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_WRITE, LONG_WAIT));
+        Waiter w = startWaiter(tid2, Permissions.READ_WRITE, LONG_WAIT);
+        assertFalse(w.acquired);
+
+        long start = System.currentTimeMillis();
+        locker.release_all_locks(tid1);
+        w.join(LONG_WAIT);
+        assertTrue(w.acquired);
+        assertTrue(System.currentTimeMillis() - start < LONG_WAIT / 2);
+        assertTrue(locker.has_lock(tid2, p0));
+    }
+
+    /**
+     * Unit test for PageLocker.acquire_lock(): a queued writer is not
+     * overtaken by readers that arrive after it.
+     */
+    @Test public void fifoGrantOrder() throws Exception {
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_ONLY, LONG_WAIT));
+        Waiter writer = startWaiter(tid2, Permissions.READ_WRITE, LONG_WAIT);
+
+        // compatible with the current holder, but must queue behind the writer
+        assertFalse(locker.acquire_lock(tid3, p0, Permissions.READ_ONLY));
+
+        locker.release_all_locks(tid1);
+        writer.join(LONG_WAIT);
+        assertTrue(writer.acquired);
+        assertFalse(locker.has_lock(tid3, p0));
+    }
+
+    /**
+     * Unit test for PageLocker.acquire_lock(): an upgrade is granted before
+     * requests that were queued earlier.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_ONLY, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid2, p0, Permissions.READ_ONLY, LONG_WAIT));
+        Waiter writer = startWaiter(tid3, Permissions.READ_WRITE, LONG_WAIT);
+        Waiter upgrade = startWaiter(tid1, Permissions.READ_WRITE, LONG_WAIT);
+
+        locker.release_all_locks(tid2);
+        upgrade.join(LONG_WAIT);
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+
+        locker.release_all_locks(tid1);
+        writer.join(LONG_WAIT);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Unit test for PageLocker.acquire_lock(): a request that times out
+     * returns false and does not block the requests behind it.
+     */
+    @Test public void timeoutLeavesQueue() throws Exception {
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_ONLY, LONG_WAIT));
+        Waiter writer = startWaiter(tid2, Permissions.READ_WRITE, 100);
+        Waiter reader = startWaiter(tid3, Permissions.READ_ONLY, LONG_WAIT);
+
+        writer.join(LONG_WAIT);
+        assertFalse(writer.acquired);
+        reader.join(LONG_WAIT);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Unit test for PageLocker.acquire_lock() with no timeout: the request
+     * waits for as long as the lock is held, and its waits-for edge goes away
+     * once it is granted, so a later wait the other way round is no deadlock.
+     */
+    @Test public void untimedWait() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_WRITE, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid2, p1, Permissions.READ_WRITE, LONG_WAIT));
+        Waiter w = startWaiter(tid2, Permissions.READ_WRITE, 0);
+        Thread.sleep(500);
+        assertFalse(w.acquired);
+        assertTrue(w.isAlive());
+
+        locker.release_page_lock(tid1, p0);
+        w.join(LONG_WAIT);
+        assertTrue(w.acquired);
+
+        Waiter other = new Waiter(locker, tid1, p1, Permissions.READ_WRITE, 0);
+        other.start();
+        Thread.sleep(50);
+        assertTrue(other.isAlive());
+        assertEquals(0, locker.get_deadlocks_detected());
+        locker.release_all_locks(tid2);
+        other.join(LONG_WAIT);
+        assertTrue(other.acquired);
+    }
+
+    /**
+     * Unit test for PageLocker deadlock detection: the request that closes
+     * a cycle aborts the youngest transaction on it without waiting.
+     */
+    @Test public void youngestVictim() throws Exception {
+        PageId p1 = new HeapPageId(1, 1);
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_WRITE, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid2, p1, Permissions.READ_WRITE, LONG_WAIT));
+        Waiter older = new Waiter(locker, tid1, p1, Permissions.READ_WRITE, LONG_WAIT);
+        older.start();
+        Thread.sleep(50);
+
+        long start = System.currentTimeMillis();
+        assertFalse(locker.acquire_lock(tid2, p0, Permissions.READ_WRITE, LONG_WAIT));
+        assertTrue(System.currentTimeMillis() - start < LONG_WAIT / 2);
+        assertEquals(1, locker.get_deadlocks_detected());
+
+        locker.release_all_locks(tid2);
+        older.join(LONG_WAIT);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * Unit test for PageLocker deadlock detection when one request closes
+     * several cycles: a merging B+ tree deleter holds pages that writers
+     * restarting their descent wait for, while all of them share the root
+     * pointer, and then upgrades the root pointer. Every writer is aborted,
+     * rather than only the one on the first cycle found, and the deleter
+     * gets its upgrade without a timeout.
+     */
+    @Test public void upgradeClosingSeveralCycles() throws Exception {
+        PageId internal = new HeapPageId(1, 1);
+        PageId leaf = new HeapPageId(1, 2);
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_ONLY, 0));
+        assertTrue(locker.acquire_lock(tid1, internal, Permissions.READ_WRITE, 0));
+        assertTrue(locker.acquire_lock(tid1, leaf, Permissions.READ_WRITE, 0));
+        assertTrue(locker.acquire_lock(tid2, p0, Permissions.READ_ONLY, 0));
+        assertTrue(locker.acquire_lock(tid3, p0, Permissions.READ_ONLY, 0));
+        Waiter writer1 = new Waiter(locker, tid2, internal, Permissions.READ_WRITE, 0);
+        writer1.start();
+        Waiter writer2 = new Waiter(locker, tid3, leaf, Permissions.READ_WRITE, 0);
+        writer2.start();
+        Thread.sleep(50);
+
+        Waiter deleter = startWaiter(tid1, Permissions.READ_WRITE, 0);
+        writer1.join(LONG_WAIT);
+        writer2.join(LONG_WAIT);
+        assertFalse(writer1.isAlive() || writer2.isAlive());
+        assertFalse(writer1.acquired);
+        assertFalse(writer2.acquired);
+        assertEquals(2, locker.get_deadlocks_detected());
+
+        locker.release_all_locks(tid2);
+        locker.release_all_locks(tid3);
+        deleter.join(LONG_WAIT);
+        assertTrue(deleter.acquired);
+    }
+
+    /**
+     * Unit test for PageLocker deadlock detection with the FEWEST_LOCKS
+     * policy: the waiting transaction holding fewer locks is aborted even
+     * though it is older.
+     */
+    @Test public void fewestLocksVictim() throws Exception {
+        locker = new PageLocker(PageLocker.VictimPolicy.FEWEST_LOCKS);
+        PageId p1 = new HeapPageId(1, 1);
+        PageId p2 = new HeapPageId(1, 2);
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_WRITE, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid2, p1, Permissions.READ_WRITE, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid2, p2, Permissions.READ_ONLY, LONG_WAIT));
+        Waiter older = new Waiter(locker, tid1, p1, Permissions.READ_WRITE, LONG_WAIT);
+        older.start();
+        Thread.sleep(50);
+        Waiter younger = new Waiter(locker, tid2, p0, Permissions.READ_WRITE, LONG_WAIT);
+        younger.start();
+
+        older.join(LONG_WAIT);
+        assertFalse(older.acquired);
+        assertEquals(1, locker.get_deadlocks_detected());
+
+        locker.release_all_locks(tid1);
+        younger.join(LONG_WAIT);
+        assertTrue(younger.acquired);
+    }
+
+    /**
+     * Unit test for PageLocker lock statistics: grants, upgrades, waits,
+     * timeouts and the wait histogram are counted per table.
+     */
+    @Test public void lockStats() throws Exception {
+        PageId other = new HeapPageId(2, 0);
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_ONLY, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid1, p0, Permissions.READ_WRITE, LONG_WAIT));
+        assertTrue(locker.acquire_lock(tid1, other, Permissions.READ_ONLY, LONG_WAIT));
+        Waiter w = startWaiter(tid2, Permissions.READ_ONLY, 100);
+        w.join(LONG_WAIT);
+        assertFalse(w.acquired);
+
+        LockStats stats = locker.get_lock_stats(1);
+        assertEquals(2, stats.getAcquisitions());
+        assertEquals(1, stats.getUpgrades());
+        assertEquals(1, stats.getWaits());
+        assertEquals(1, stats.getTimeouts());
+        assertEquals(0, stats.getAborts());
+        assertTrue(stats.getTotalWaitNanos() >= 100 * 1000000L);
+        long waits = 0;
+        for (long count : stats.getWaitHistogram())
+            waits += count;
+        assertEquals(1, waits);
+
+        assertEquals(1, locker.get_lock_stats(2).getAcquisitions());
+        assertEquals(2, locker.get_all_lock_stats().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLockerTest.class);
+    }
+}
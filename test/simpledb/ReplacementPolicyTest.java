@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.VictimFilter ANY_PAGE = new ReplacementPolicy.VictimFilter() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static ReplacementPolicy.VictimFilter allExcept(final PageId pinned) {
+        return new ReplacementPolicy.VictimFilter() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(pinned);
+            }
+        };
+    }
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockPolicy: an unreferenced page is evicted before
+     * pages that were hit since the last sweep.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++)
+            clock.pageLoaded(page(i));
+
+        // first sweep clears every bit, so the page under the hand goes
+        assertEquals(page(0), clock.chooseVictim(ANY_PAGE));
+
+        clock.pageLoaded(page(3));
+        clock.pageAccessed(page(1));
+        assertEquals(page(2), clock.chooseVictim(ANY_PAGE));
+    }
+
+    /**
+     * Unit test for ClockPolicy: pages rejected by the filter are skipped,
+     * and null is returned when nothing is evictable.
+     */
+    @Test public void clockRespectsFilter() {
+        ClockPolicy clock = new ClockPolicy(2);
+        clock.pageLoaded(page(0));
+        clock.pageLoaded(page(1));
+        assertEquals(page(1), clock.chooseVictim(allExcept(page(0))));
+        assertNull(clock.chooseVictim(allExcept(page(0))));
+
+        clock.pageRemoved(page(0));
+        assertNull(clock.chooseVictim(ANY_PAGE));
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: a long sequential scan does not evict
+     * pages that were re-referenced after their first eviction.
+     */
+    @Test public void twoQueueScanResistance() {
+        TwoQueuePolicy twoQ = new TwoQueuePolicy(4);
+        HashSet<PageId> resident = new HashSet<PageId>();
+
+        // page 0 is loaded, evicted, then loaded again: it becomes hot
+        twoQ.pageLoaded(page(0));
+        assertEquals(page(0), twoQ.chooseVictim(ANY_PAGE));
+        twoQ.pageLoaded(page(0));
+        resident.add(page(0));
+
+        for (int i = 100; i < 200; i++) {
+            if (resident.size() == 4) {
+                PageId victim = twoQ.chooseVictim(ANY_PAGE);
+                assertTrue(resident.remove(victim));
+            }
+            twoQ.pageLoaded(page(i));
+            resident.add(page(i));
+        }
+        assertTrue(resident.contains(page(0)));
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: removed pages are never chosen.
+     */
+    @Test public void twoQueueRemove() {
+        TwoQueuePolicy twoQ = new TwoQueuePolicy(4);
+        twoQ.pageLoaded(page(0));
+        twoQ.pageLoaded(page(1));
+        twoQ.pageRemoved(page(0));
+        assertEquals(page(1), twoQ.chooseVictim(ANY_PAGE));
+        assertNull(twoQ.chooseVictim(ANY_PAGE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,201 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+  private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+
+  private HeapPageId pid;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void addTable() throws Exception {
+    this.pid = new HeapPageId(-1, -1);
+    Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+  }
+
+  private static Tuple tuple(int i, String s) {
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField(i));
+    t.setField(1, new StringField(s, Type.STRING_LEN));
+    return t;
+  }
+
+  /** Inserts tuples (i, "v" + i) until the page is full. */
+  private static int fill(SlottedHeapPage page) throws Exception {
+    int n = 0;
+    while (page.hasRoomFor(tuple(n, "v" + n))) {
+      page.insertTuple(tuple(n, "v" + n));
+      n++;
+    }
+    return n;
+  }
+
+  private static ArrayList<String> contents(HeapPage page) {
+    ArrayList<String> out = new ArrayList<String>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      out.add(t.getRecordId().getTupleNumber() + ":" + t);
+    }
+    return out;
+  }
+
+  /**
+   * Unit test for SlottedHeapPage.insertTuple() and getPageData(): short
+   * strings fit many more tuples than fixed-size slots, and the page read
+   * back from its data has the same tuples in the same slots
+   */
+  @Test public void insertTuple() throws Exception {
+    SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+    assertTrue(page.getNumEmptySlots() > 0);
+    int n = fill(page);
+    int fixed = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+    assertTrue(n > 5 * fixed);
+    assertEquals(n, page.getNonEmptyTuples());
+    assertEquals(0, page.getNumEmptySlots());
+
+    SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+    assertEquals(contents(page), contents(copy));
+    assertEquals(new StringField("v17", Type.STRING_LEN), copy.getField(17, 1));
+    assertEquals(new IntField(n - 1), copy.getField(n - 1, 0));
+  }
+
+  /**
+   * Unit test for SlottedHeapPage.deleteTuple(): the freed bytes can be used
+   * by larger tuples, and the tuples left keep their slots
+   */
+  @Test public void deleteTuple() throws Exception {
+    SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+    int n = fill(page);
+    ArrayList<Tuple> all = new ArrayList<Tuple>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext())
+      all.add(it.next());
+    for (int i = 0; i < n; i += 2)
+      page.deleteTuple(all.get(i));
+    assertEquals(n - (n + 1) / 2, page.getNonEmptyTuples());
+    assertTrue(page.getNumEmptySlots() >= (n + 1) / 2);
+
+    String big = String.format("%0100d", 0);
+    int added = 0;
+    while (page.hasRoomFor(tuple(-1, big))) {
+      page.insertTuple(tuple(-1, big));
+      added++;
+    }
+    assertTrue(added > 0);
+
+    SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+    for (int i = 1; i < n; i += 2)
+      assertEquals(new StringField("v" + i, Type.STRING_LEN), copy.getField(i, 1));
+    assertEquals(contents(page), contents(copy));
+    try {
+      page.deleteTuple(all.get(1));
+      page.deleteTuple(all.get(1));
+      throw new Exception("slot should be empty; expected DbException");
+    } catch (DbException e) {
+      // explicitly ignored
+    }
+  }
+
+  /**
+   * Unit test for SlottedHeapPage.fillBatch(): the same tuples as the page's
+   * iterator, across batches smaller than the page
+   */
+  @Test public void fillBatch() throws Exception {
+    SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+    fill(page);
+    ArrayList<Tuple> all = new ArrayList<Tuple>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext())
+      all.add(it.next());
+    page.deleteTuple(all.get(5));
+
+    SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+    ArrayList<String> got = new ArrayList<String>();
+    int slot = 0;
+    while (slot < copy.numSlots) {
+      TupleBatch b = new TupleBatch(TD, 100);
+      slot = copy.fillBatch(b, slot);
+      for (int i = 0; i < b.size(); i++) {
+        Tuple t = b.getTuple(i);
+        got.add(t.getRecordId().getTupleNumber() + ":" + t);
+      }
+    }
+    assertEquals(contents(page), got);
+  }
+
+  /**
+   * Unit test for SlottedHeapPage.getBeforeImage()
+   */
+  @Test public void beforeImage() throws Exception {
+    SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+    page.insertTuple(tuple(1, "a"));
+    page.setBeforeImage();
+    ArrayList<String> committed = contents(page);
+    page.insertTuple(tuple(2, "b"));
+    page.deleteTuple(page.getTuple(0));
+    SlottedHeapPage before = page.getBeforeImage();
+    assertEquals(committed, contents(before));
+  }
+
+  /**
+   * Unit test for a slotted HeapFile: inserts through the buffer pool take
+   * fewer pages than fixed-size slots would, and a scan returns every tuple
+   */
+  @Test public void heapFile() throws Exception {
+    File f = File.createTempFile("slotted", ".dat");
+    f.deleteOnExit();
+    HeapFile hf = new HeapFile(f, TD, true);
+    Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    assertTrue(hf.isSlotted());
+
+    final int rows = 3000;
+    TransactionId tid = new TransactionId();
+    ArrayList<String> want = new ArrayList<String>();
+    for (int i = 0; i < rows; i++) {
+      Tuple t = tuple(i, "name" + (i % 50));
+      Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+      want.add(t.toString());
+    }
+    Database.getBufferPool().transactionComplete(tid);
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    int fixed = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+    assertTrue(hf.numPages() * 5 < (rows + fixed - 1) / fixed);
+
+    tid = new TransactionId();
+    ArrayList<String> got = new ArrayList<String>();
+    DbFileIterator it = hf.iterator(tid);
+    it.open();
+    while (it.hasNext())
+      got.add(it.next().toString());
+    it.close();
+    Database.getBufferPool().transactionComplete(tid);
+    Collections.sort(want);
+    Collections.sort(got);
+    assertEquals(want, got);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+  }
+}
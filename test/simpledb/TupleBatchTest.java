@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+  private static final int ROWS = 5000;
+
+  private HeapFile hf;
+  private ArrayList<ArrayList<Integer>> tuples;
+  private TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static ArrayList<String> rows(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      out.add(op.next().toString());
+    op.close();
+    return out;
+  }
+
+  private static ArrayList<String> batches(BatchOpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    op.open();
+    TupleBatch b;
+    while ((b = op.nextBatch()) != null) {
+      assertTrue(b.size() > 0);
+      assertTrue(b.size() <= TupleBatch.DEFAULT_SIZE);
+      for (int i = 0; i < b.size(); i++)
+        out.add(b.getTuple(i).toString());
+    }
+    op.close();
+    return out;
+  }
+
+  private Project plan() {
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(2);
+    fields.add(0);
+    return new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)),
+            new SeqScan(tid, hf.getId(), "t")));
+  }
+
+  /**
+   * Unit test for SeqScan, Filter and Project.nextBatch(): the same tuples,
+   * in the same order, as next()
+   */
+  @Test public void scanFilterProject() throws Exception {
+    ArrayList<String> want = rows(plan());
+    assertTrue(want.size() > TupleBatch.DEFAULT_SIZE);
+    assertTrue(want.size() < ROWS);
+    assertEquals(want, batches(plan()));
+  }
+
+  /**
+   * Unit test for Predicate.filter(TupleBatch) on a non-INT field, over a
+   * child read by rows
+   */
+  @Test public void stringFilter() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new Object[] { 1, "a", 2, "b", 3, "a", 4, "c" });
+    Filter f = new Filter(new Predicate(1, Predicate.Op.EQUALS, new StringField("a", Type.STRING_LEN)), child);
+    f.open();
+    TupleBatch b = f.nextBatch();
+    assertEquals(2, b.size());
+    assertEquals(1, b.intColumn(0)[b.row(0)]);
+    assertEquals(3, b.intColumn(0)[b.row(1)]);
+    assertNull(f.nextBatch());
+    f.close();
+  }
+
+  /**
+   * Unit test for Aggregate.open() reading its child by batches
+   */
+  @Test public void aggregate() throws Exception {
+    HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(1) >= 50)
+        continue;
+      Integer s = sums.get(t.get(0));
+      sums.put(t.get(0), (s == null ? 0 : s) + t.get(2));
+    }
+    ArrayList<String> want = new ArrayList<String>();
+    for (Integer k : sums.keySet())
+      want.add(k + "\t" + sums.get(k));
+    Collections.sort(want);
+
+    Aggregate agg = new Aggregate(new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)),
+        new SeqScan(tid, hf.getId(), "t")), 2, 0, Aggregator.Op.SUM);
+    ArrayList<String> got = batches(agg);
+    Collections.sort(got);
+    assertEquals(want, got);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.nextBatch()
+   */
+  @Test public void hashJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    ArrayList<String> want = rows(new HashEquiJoin(p, new SeqScan(tid, hf.getId(), "a"),
+        new SeqScan(tid, hf.getId(), "b")));
+    assertTrue(want.size() > TupleBatch.DEFAULT_SIZE);
+    assertEquals(want, batches(new HashEquiJoin(p, new SeqScan(tid, hf.getId(), "a"),
+        new SeqScan(tid, hf.getId(), "b"))));
+  }
+
+  /**
+   * Unit test for Operator.nextBatch() after hasNext() has fetched a tuple
+   */
+  @Test public void afterHasNext() throws Exception {
+    ArrayList<String> want = rows(plan());
+    Project op = plan();
+    op.open();
+    ArrayList<String> got = new ArrayList<String>();
+    got.add(op.next().toString());
+    assertTrue(op.hasNext());
+    TupleBatch b;
+    while ((b = op.nextBatch()) != null) {
+      for (int i = 0; i < b.size(); i++)
+        got.add(b.getTuple(i).toString());
+    }
+    op.close();
+    assertEquals(want, got);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
@@ -427,6 +427,50 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        final int COMMITTERS = 4;
+        Database.getLogFile().setGroupCommit(true, 10000, COMMITTERS);
+
+        // *** Test:
+        // concurrent commits share a single force, which happens as soon
+        // as the batch is full rather than after the delay
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < COMMITTERS; i++) {
+            Thread th = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            th.start();
+            threads.add(th);
+        }
+        for (Thread th : threads)
+            th.join();
+        assertTrue(errors.isEmpty());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, Database.getLogFile().getGroupCommitFlushes());
+        assertEquals(2 * COMMITTERS, Database.getLogFile().getTotalRecords());
+
+        // a lone commit is forced once the delay is up
+        Database.getLogFile().setGroupCommit(true, 50, COMMITTERS);
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        assertEquals(2, Database.getLogFile().getGroupCommitFlushes());
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);